@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Lets the proxy cache the results of a synchronous remote method, keyed by
+ * the remote object and the argument values. Only use it on methods which
+ * always return the same result for the same arguments (or for which a stale
+ * result is acceptable until the entry expires). Cached results are shared by
+ * all the callers so they should not be modified. Exceptions are never
+ * cached.
+ * 
+ * @author chirino
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@java.lang.annotation.Target({java.lang.annotation.ElementType.METHOD})
+public @interface Cacheable {
+    /**
+     * The time in milliseconds a result stays cached, 0 or less to keep it
+     * until it gets evicted or invalidated.
+     */
+    long ttl() default 60000;
+
+    /**
+     * The maximum number of results cached for the method, the least
+     * recently used one gets evicted first.
+     */
+    int maxEntries() default 1000;
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown instead of sending a request while the circuit breaker of the
+ * destination of the remote object is open, i.e. when too many of the recent
+ * requests sent to it failed or timed out.
+ * 
+ * @author chirino
+ */
+public class CircuitOpenException extends RemoteException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.util.Random;
+
+/**
+ * Retries with exponentially growing delays, randomized by a jitter factor so
+ * that the senders of many clients do not reconnect in lock step after a
+ * broker outage.
+ * 
+ * @author chirino
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+    private final long deadline;
+    private final Random random = new Random();
+
+    /**
+     * Retries forever, starting with a 10 ms delay doubling up to 5 seconds,
+     * with a 20% jitter.
+     */
+    public ExponentialBackoffRetryPolicy() {
+        this(10, 5000, 2, 0.2, 0, 0);
+    }
+
+    /**
+     * @param initialDelay
+     *            The delay before the first retry in milliseconds.
+     * @param maxDelay
+     *            The maximum delay between two attempts in milliseconds.
+     * @param multiplier
+     *            The factor applied to the delay after each failed retry.
+     * @param jitter
+     *            The fraction of the delay which is randomized, between 0
+     *            and 1.
+     * @param maxAttempts
+     *            The number of attempts after which to give up, 0 for no
+     *            limit.
+     * @param deadline
+     *            The time in milliseconds after the first attempt past which
+     *            no more attempts are made, 0 for no limit.
+     */
+    public ExponentialBackoffRetryPolicy(long initialDelay, long maxDelay, double multiplier, double jitter, int maxAttempts, long deadline) {
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("delays must satisfy 0 <= initialDelay <= maxDelay");
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+        this.deadline = deadline;
+    }
+
+    public long nextDelay(int attempts, long elapsed) {
+        if (maxAttempts > 0 && attempts >= maxAttempts) {
+            return -1;
+        }
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempts - 1));
+        if (jitter > 0) {
+            double r;
+            synchronized (random) {
+                r = random.nextDouble();
+            }
+            delay -= delay * jitter * r;
+        }
+        if (deadline > 0 && elapsed + delay > deadline) {
+            return -1;
+        }
+        return (long) delay;
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoffRetryPolicy[initialDelay=" + initialDelay + ", maxDelay=" + maxDelay + ", multiplier=" + multiplier + ", jitter=" + jitter + ", maxAttempts=" + maxAttempts + ", deadline=" + deadline + "]";
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks a remote method which returns the same result when it is invoked
+ * several times with the same arguments. While such a call is in flight,
+ * identical calls made through any proxy of the same remote object wait for
+ * its result instead of sending requests of their own. {@link Cacheable}
+ * methods are treated as idempotent too.
+ * <p>
+ * Callers joining a call share its result (or exception). For asynchronous
+ * methods, every caller gets a {@link RemoteFuture} of its own: canceling it
+ * only detaches that caller, the call still completes the futures of the
+ * others.
+ * 
+ * @author chirino
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@java.lang.annotation.Target({java.lang.annotation.ElementType.METHOD})
+public @interface Idempotent {
+}
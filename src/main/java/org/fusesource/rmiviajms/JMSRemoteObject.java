@@ -25,7 +25,9 @@ import java.rmi.RemoteException;
 import java.rmi.server.RemoteObject;
 import java.rmi.server.ServerCloneException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
 
+import org.fusesource.rmiviajms.internal.CallBatch;
 import org.fusesource.rmiviajms.internal.JMSRemoteRef;
 import org.fusesource.rmiviajms.internal.JMSRemoteSystem;
 
@@ -216,6 +218,50 @@ public class JMSRemoteObject extends RemoteObject implements Serializable {
         return (T) JMSRemoteRef.toProxy(destination, mainInterface, extraInterface);
     }
 
+    /**
+     * Starts a batch of calls against a remote proxy. The calls made against
+     * the batch's recorder are sent in a single message once
+     * {@link RemoteBatch#send()} is called.
+     * 
+     * @param proxy
+     *            A remote proxy obtained from {@link #toProxy} or received from
+     *            a remote system.
+     * @return the batch
+     * @throws RemoteException
+     *             If the recorder could not be created.
+     * @throws IllegalArgumentException
+     *             If the object is not a remote proxy.
+     */
+    public static <T> RemoteBatch<T> batch(T proxy) throws RemoteException {
+        if (!JMSRemoteRef.isRemoteProxy(proxy)) {
+            throw new IllegalArgumentException("Not a remote proxy: " + proxy);
+        }
+        return new CallBatch<T>(JMSRemoteSystem.INSTANCE, JMSRemoteRef.getJMSRemoteRefFromProxy((Remote) proxy));
+    }
+
+    /**
+     * Drops the results of {@link Cacheable} methods cached for a remote
+     * proxy.
+     * 
+     * @throws IllegalArgumentException
+     *             If the object is not a remote proxy.
+     */
+    public static void invalidateCache(Remote proxy) {
+        JMSRemoteRef ref = JMSRemoteRef.getJMSRemoteRefFromProxy(proxy);
+        if (ref == null) {
+            throw new IllegalArgumentException("Not a remote proxy: " + proxy);
+        }
+        JMSRemoteSystem.INSTANCE.invalidateCache(ref);
+    }
+
+    /**
+     * @return a snapshot of the counters kept by the remote system, such as
+     *         the result cache hits and misses.
+     */
+    public static Map<String, Long> getMetrics() {
+        return JMSRemoteSystem.INSTANCE.getMetrics();
+    }
+
     static final private ThreadLocal<Long> NEXT_INVOCATION_TIMEOUT = new ThreadLocal<Long>();
 
     public static void setNextInvocationTimeout(Long timeout) {
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+/**
+ * How calls made through a proxy to an object exported by the same JVM
+ * are carried out.
+ * 
+ * @author chirino
+ */
+public enum LocalCallMode {
+    /**
+     * Like any other call: the request and response go through the broker.
+     */
+    BROKER,
+    /**
+     * The exported object is invoked directly, with arguments and results
+     * copied by serializing them in memory, so that the pass by value
+     * semantics of remote calls are kept.
+     */
+    COPY,
+    /**
+     * The exported object is invoked directly with the caller's arguments,
+     * and the caller gets the object's results, like a local method call.
+     */
+    REFERENCE
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Records calls against a remote object so that they can be sent to it in a
+ * single message. The responses of all the calls come back in a single
+ * message too, so N calls cost one round trip instead of N.
+ * <p>
+ * Calls made against the {@link #getRecorder() recorder} are not sent right
+ * away: they return null (or the default value of a primitive return type) and
+ * their result is available from {@link #getLastResult()} or
+ * {@link #getResults()}. Methods returning a {@link java.util.concurrent.Future}
+ * return their {@link RemoteFuture} directly. One way methods are recorded like
+ * any other call and their future completes once they have been executed.
+ * <p>
+ * Example:
+ * <pre>
+ * RemoteBatch&lt;IStore&gt; batch = JMSRemoteObject.batch(store);
+ * for (Item item : items) {
+ *     batch.getRecorder().add(item);
+ * }
+ * batch.send();
+ * for (RemoteFuture&lt;Object&gt; result : batch.getResults()) {
+ *     result.get();
+ * }
+ * </pre>
+ * 
+ * @author chirino
+ */
+public interface RemoteBatch<T> {
+
+    /**
+     * @return a proxy implementing the same interfaces as the remote proxy the
+     *         batch was created for, which records the calls made against it.
+     */
+    T getRecorder();
+
+    /**
+     * @return the future result of the last call recorded.
+     */
+    RemoteFuture<Object> getLastResult();
+
+    /**
+     * @return the future results of all the calls recorded so far, in the
+     *         order they were recorded.
+     */
+    List<RemoteFuture<Object>> getResults();
+
+    /**
+     * Sends the recorded calls; the remote object executes them one after the
+     * other in the order they were recorded.
+     */
+    void send() throws RemoteException;
+
+    /**
+     * Sends the recorded calls.
+     * 
+     * @param parallel
+     *            if true the remote object may execute the calls concurrently
+     *            on its dispatch threads.
+     */
+    void send(boolean parallel) throws RemoteException;
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.util.concurrent.Future;
+
+/**
+ * The result of an asynchronous remote method invocation.
+ * <p>
+ * Remote interface methods declared to return a {@link Future} (or a
+ * RemoteFuture) are invoked asynchronously: the proxy sends the request and
+ * returns one of these immediately. The future is completed when the response
+ * arrives, so the calling thread does not have to wait for the remote object.
+ * The exported object may return any {@link Future}, it is resolved on the
+ * server side before the response is sent back.
+ *
+ * @author chirino
+ */
+public interface RemoteFuture<T> extends Future<T> {
+
+    /**
+     * Gets notified when a {@link RemoteFuture} completes.
+     */
+    public interface Listener<T> {
+        void onComplete(RemoteFuture<T> future);
+    }
+
+    /**
+     * Registers a listener that is called once the future has completed. If
+     * the future has already completed the listener is called right away in
+     * the calling thread, otherwise it is called from one of the RMI via JMS
+     * dispatch threads.
+     *
+     * @param listener
+     *            The listener to notify.
+     */
+    void addListener(Listener<T> listener);
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown when a request could not be sent because too many requests are
+ * already outstanding toward the destination of the remote object.
+ * 
+ * @see RequestWindowStrategy
+ * @author chirino
+ */
+public class RequestWindowFullException extends RemoteException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RequestWindowFullException(String message) {
+        super(message);
+    }
+
+}
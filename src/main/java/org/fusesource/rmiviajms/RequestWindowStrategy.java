@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+/**
+ * What a proxy does with a request when the number of requests outstanding
+ * toward the destination of the remote object has reached the request
+ * window.
+ * 
+ * @author chirino
+ */
+public enum RequestWindowStrategy {
+    /**
+     * The caller waits for an outstanding request to complete, for at most
+     * the timeout of the request.
+     */
+    BLOCK,
+    /**
+     * The call fails right away with a {@link RequestWindowFullException}.
+     */
+    FAIL,
+    /**
+     * The request is queued and sent once an outstanding request completes.
+     * The call fails with a {@link RequestWindowFullException} when the
+     * queue is full too.
+     */
+    QUEUE
+}
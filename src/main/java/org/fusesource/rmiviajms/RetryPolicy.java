@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+/**
+ * Decides if and when a failed send of a request or response is retried.
+ * Before each retry the JMS connection used for the send is re-created.
+ * Implementations must be thread safe since they are shared by all the
+ * senders of a remote system.
+ * 
+ * @see ExponentialBackoffRetryPolicy
+ * @author chirino
+ */
+public interface RetryPolicy {
+
+    /**
+     * @param attempts
+     *            The number of failed attempts so far, 1 after the first
+     *            failure.
+     * @param elapsed
+     *            The time in milliseconds since the first attempt.
+     * @return the time in milliseconds to wait before the next attempt, or a
+     *         negative value to give up.
+     */
+    long nextDelay(int attempts, long elapsed);
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes the bodies of the request and response messages. The name of the
+ * serializer used is sent along with each message, so a remote system can
+ * decode the messages of any serializer it has registered, and answers a
+ * request with the serializer it came with.
+ * <p>
+ * Besides the objects passed to and returned by the remote methods, the
+ * bodies are internal {@link java.io.Serializable} envelopes which a
+ * serializer may encode with Java serialization. Implementations must be
+ * thread safe.
+ * 
+ * @see org.fusesource.rmiviajms.internal.JMSRemoteSystem#registerSerializer(Serializer)
+ * @author chirino
+ */
+public interface Serializer {
+
+    /**
+     * @return the name identifying the serializer in the messages.
+     */
+    String getName();
+
+    void serialize(Object object, OutputStream out) throws IOException;
+
+    /**
+     * @param classLoader
+     *            The class loader to resolve the classes of the objects with.
+     */
+    Object deserialize(InputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException;
+
+}
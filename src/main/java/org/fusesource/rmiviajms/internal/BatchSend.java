@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.NotSerializableException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+import org.fusesource.rmiviajms.internal.JMSTemplate.TemplateClosedException;
+
+/**
+ * Sends several requests to an object as a single {@link RequestBatch}
+ * message. Either coalesced one way requests, which do not get a response,
+ * or an explicit batch of calls which get answered by a single
+ * {@link ResponseBatch}.
+ */
+final class BatchSend implements Runnable {
+
+    private final JMSRemoteSystem remoteSystem;
+    private final JMSRemoteRef remoteRef;
+    private final JMSTemplate sendTemplate;
+    private final ArrayList<RequestExchange> exchanges;
+    private final boolean oneway;
+    private final RequestBatch batch;
+    private final int deliveryMode;
+    private final int priority;
+
+    BatchSend(JMSRemoteSystem remoteSystem, SenderLane lane, ArrayList<RequestExchange> exchanges, boolean oneway, boolean parallel) {
+        this.remoteSystem = remoteSystem;
+        this.sendTemplate = lane.template;
+        this.exchanges = exchanges;
+        this.oneway = oneway;
+        this.remoteRef = exchanges.get(0).getRemoteRef();
+
+        // The batch gets the strongest quality of service asked for by its requests.
+        Request requests[] = new Request[exchanges.size()];
+        int deliveryMode = DeliveryMode.NON_PERSISTENT;
+        int priority = 0;
+        for (int i = 0; i < requests.length; i++) {
+            RequestExchange exchange = exchanges.get(i);
+            requests[i] = exchange.getRequest();
+            if (exchange.getDeliveryMode() == DeliveryMode.PERSISTENT) {
+                deliveryMode = DeliveryMode.PERSISTENT;
+            }
+            priority = Math.max(priority, exchange.getPriority());
+        }
+        this.batch = new RequestBatch(requests, parallel);
+        this.deliveryMode = deliveryMode;
+        this.priority = priority;
+    }
+
+    public void run() {
+        if (!oneway) {
+            for (RequestExchange exchange : exchanges) {
+                exchange.register();
+            }
+        }
+        Message msg = null;
+        Retry retry = null;
+        while (remoteSystem.running.get()) {
+            try {
+                if (msg == null) {
+                    Session session = sendTemplate.getSession();
+                    msg = remoteSystem.getCodec().encode(session, batch, null, remoteRef.getDestination());
+                    msg.setLongProperty(JMSRemoteSystem.MSG_PROP_OBJECT, remoteRef.getObjectId());
+                    if (oneway) {
+                        msg.setJMSType(JMSRemoteSystem.MSG_TYPE_ONEWAY_BATCH);
+                        int credits = exchanges.get(0).getCredits();
+                        if (credits > 0) {
+                            msg.setIntProperty(JMSRemoteSystem.MSG_PROP_CREDIT, credits);
+                            msg.setJMSReplyTo(sendTemplate.getLocalSystemQueue());
+                        }
+                    } else {
+                        msg.setJMSType(JMSRemoteSystem.MSG_TYPE_REQUEST_BATCH);
+                        msg.setLongProperty(JMSRemoteSystem.MSG_PROP_REQUEST, batch.requests[0].requestId);
+                        long[] ids = new long[batch.requests.length];
+                        for (int i = 0; i < ids.length; i++) {
+                            ids[i] = batch.requests[i].requestId;
+                        }
+                        JMSRemoteSystem.setRequestIds(msg, ids);
+                        msg.setJMSReplyTo(sendTemplate.getLocalSystemQueue());
+                    }
+                }
+                MessageProducer producer = sendTemplate.getMessageProducer();
+                producer.send(remoteRef.getDestination(), msg, deliveryMode, priority, 0);
+                return;
+            } catch (TemplateClosedException tce) {
+                fail(tce, false);
+                return;
+            } catch (Exception e) {
+                if (e.getCause() instanceof NotSerializableException) {
+                    fail(e.getCause(), false);
+                    return;
+                }
+                if (retry == null) {
+                    retry = new Retry(remoteSystem);
+                }
+                if (!retry.retry(sendTemplate, e)) {
+                    fail(e, true);
+                    return;
+                }
+            }
+        }
+        fail(new RemoteException("RemoteSystem reset"), false);
+    }
+
+    /**
+     * @param sendFailure
+     *            Whether the batch could not be sent, which counts against
+     *            the circuit breaker of the destination.
+     */
+    private void fail(Throwable cause, boolean sendFailure) {
+        if (oneway) {
+            // Nobody is waiting for the outcome of one way calls.
+            cause.printStackTrace();
+            for (RequestExchange exchange : exchanges) {
+                exchange.returnCredit();
+            }
+            return;
+        }
+        for (RequestExchange exchange : exchanges) {
+            exchange.cancel();
+            exchange.setResponse(new Response(exchange.getRequest().requestId, null, new RemoteException("Could not send batch", cause)), sendFailure);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.fusesource.rmiviajms.RemoteBatch;
+import org.fusesource.rmiviajms.RemoteFuture;
+
+/**
+ * Records the calls made against a remote proxy and sends them as a single
+ * {@link RequestBatch}.
+ * 
+ * @author chirino
+ */
+public final class CallBatch<T> implements RemoteBatch<T>, InvocationHandler {
+
+    private final JMSRemoteSystem remoteSystem;
+    private final JMSRemoteRef remoteRef;
+    private final T recorder;
+    private final ArrayList<RequestExchange> exchanges = new ArrayList<RequestExchange>();
+    private boolean sent;
+
+    @SuppressWarnings("unchecked")
+    public CallBatch(JMSRemoteSystem remoteSystem, JMSRemoteRef remoteRef) throws RemoteException {
+        this.remoteSystem = remoteSystem;
+        this.remoteRef = remoteRef;
+        if (remoteRef.getSuperclass() == null) {
+            Class<?>[] interfaces = remoteRef.getInterfaces();
+            this.recorder = (T) Proxy.newProxyInstance(interfaces[0].getClassLoader(), interfaces, this);
+        } else {
+            this.recorder = (T) CGLibProxyAdapter.newProxyInstance(remoteRef.getSuperclass(), remoteRef.getInterfaces(), this);
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            if (method.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (method.getName().equals("equals")) {
+                return proxy == args[0];
+            } else {
+                return "Recorder[" + remoteRef.remoteToString() + "]";
+            }
+        }
+
+        MethodInfo info = remoteRef.getMethodInfo(method);
+        RequestExchange exchange;
+        synchronized (this) {
+            if (sent) {
+                throw new IllegalStateException("The batch has already been sent");
+            }
+            // Even one way calls get a response so that the whole batch completes.
+            long timeout = info.oneway ? JMSRemoteSystem.REQUEST_TIMEOUT : info.timeout;
+            exchange = new RequestExchange(remoteSystem, remoteRef, info.methodHash, remoteSystem.openArgumentStreams(args, info.deliveryMode, info.priority), false, timeout,
+                    info.deliveryMode, info.priority);
+            exchanges.add(exchange);
+        }
+        if (info.async) {
+            return exchange;
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    public T getRecorder() {
+        return recorder;
+    }
+
+    public synchronized RemoteFuture<Object> getLastResult() {
+        return exchanges.isEmpty() ? null : exchanges.get(exchanges.size() - 1);
+    }
+
+    public synchronized List<RemoteFuture<Object>> getResults() {
+        return Collections.<RemoteFuture<Object>> unmodifiableList(new ArrayList<RemoteFuture<Object>>(exchanges));
+    }
+
+    public void send() throws RemoteException {
+        send(false);
+    }
+
+    public void send(boolean parallel) throws RemoteException {
+        ArrayList<RequestExchange> toSend;
+        synchronized (this) {
+            if (sent) {
+                throw new IllegalStateException("The batch has already been sent");
+            }
+            sent = true;
+            toSend = new ArrayList<RequestExchange>(exchanges);
+        }
+        if (!toSend.isEmpty()) {
+            remoteSystem.sendBatch(remoteRef, toSend, parallel);
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == char.class) {
+            return Character.valueOf((char) 0);
+        } else if (type == byte.class) {
+            return Byte.valueOf((byte) 0);
+        } else if (type == short.class) {
+            return Short.valueOf((short) 0);
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        } else if (type == float.class) {
+            return Float.valueOf(0);
+        } else {
+            return Double.valueOf(0);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.Arrays;
+
+import javax.jms.Destination;
+
+import org.fusesource.rmiviajms.CircuitOpenException;
+
+/**
+ * Stops sending requests to a destination once too many of the recent ones
+ * failed to get a response, e.g. because nothing consumes from it.
+ * <p>
+ * While closed, the outcomes of the last window requests are tracked and the
+ * breaker opens once the ratio of failures among them reaches the failure
+ * ratio. While open, requests fail right away. After the open time, a
+ * limited number of probe requests are let through (half open): the breaker
+ * closes if they all succeed and opens again if one of them fails, or if they
+ * have not all completed within the open time.
+ * <p>
+ * Only local failures count: timeouts and send failures. Exceptions thrown by
+ * the remote object show that it is reachable.
+ */
+final class CircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final JMSRemoteSystem remoteSystem;
+    private final Destination destination;
+    private final double failureRatio;
+    private final long openTime;
+    private final int halfOpenCalls;
+    private final boolean[] outcomes;
+    private int count;
+    private int index;
+    private int failures;
+
+    private int state = CLOSED;
+    private int generation;
+    private long openedAt;
+    private long halfOpenedAt;
+    private int probes;
+    private int probeSuccesses;
+
+    CircuitBreaker(JMSRemoteSystem remoteSystem, Destination destination, double failureRatio, int window, long openTime, int halfOpenCalls) {
+        this.remoteSystem = remoteSystem;
+        this.destination = destination;
+        this.failureRatio = failureRatio;
+        this.outcomes = new boolean[window];
+        this.openTime = openTime;
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Lets a request through, or not.
+     * 
+     * @return the generation of the breaker state the request was let through
+     *         in, to be passed to {@link #record(int, boolean)}.
+     * @throws CircuitOpenException
+     *             If the request must not be sent.
+     */
+    synchronized int acquire() throws CircuitOpenException {
+        if (state == OPEN) {
+            if (System.currentTimeMillis() - openedAt < openTime) {
+                throw rejected();
+            }
+            transition(HALF_OPEN);
+        }
+        if (state == HALF_OPEN) {
+            if (probes >= halfOpenCalls) {
+                if (System.currentTimeMillis() - halfOpenedAt >= openTime) {
+                    // A probe that hangs counts as failed.
+                    transition(OPEN);
+                }
+                throw rejected();
+            }
+            probes++;
+        }
+        return generation;
+    }
+
+    /**
+     * Records the outcome of a request. Outcomes of requests let through
+     * before the last state transition are ignored.
+     */
+    synchronized void record(int generation, boolean failed) {
+        if (generation != this.generation) {
+            return;
+        }
+        if (state == CLOSED) {
+            if (outcomes[index]) {
+                failures--;
+            }
+            outcomes[index] = failed;
+            if (failed) {
+                failures++;
+            }
+            index = (index + 1) % outcomes.length;
+            if (count < outcomes.length) {
+                count++;
+            }
+            if (count == outcomes.length && failures >= failureRatio * count) {
+                transition(OPEN);
+            }
+        } else if (state == HALF_OPEN) {
+            if (failed) {
+                transition(OPEN);
+            } else if (++probeSuccesses >= halfOpenCalls) {
+                transition(CLOSED);
+            }
+        }
+    }
+
+    /**
+     * Gives back a probe slot taken by a request which did not get sent.
+     */
+    synchronized void cancel(int generation) {
+        if (generation == this.generation && state == HALF_OPEN) {
+            probes--;
+        }
+    }
+
+    private void transition(int newState) {
+        state = newState;
+        generation++;
+        switch (newState) {
+        case OPEN:
+            openedAt = System.currentTimeMillis();
+            remoteSystem.metrics.increment(Metrics.CIRCUIT_OPENED);
+            break;
+        case HALF_OPEN:
+            halfOpenedAt = System.currentTimeMillis();
+            probes = 0;
+            probeSuccesses = 0;
+            remoteSystem.metrics.increment(Metrics.CIRCUIT_HALF_OPENED);
+            break;
+        default:
+            Arrays.fill(outcomes, false);
+            count = 0;
+            index = 0;
+            failures = 0;
+            remoteSystem.metrics.increment(Metrics.CIRCUIT_CLOSED);
+        }
+    }
+
+    private CircuitOpenException rejected() {
+        remoteSystem.metrics.increment(Metrics.CIRCUIT_REJECTED);
+        return new CircuitOpenException("Too many failed requests to " + destination);
+    }
+}
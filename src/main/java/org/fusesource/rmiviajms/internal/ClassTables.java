@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+
+/**
+ * The Java serialization class descriptors shared with the other remote
+ * systems, so that a message refers to the descriptors of the classes the peer
+ * has already seen by an integer handle instead of sending them again.
+ * <p>
+ * The tables are keyed by the names of the system queues, which include the
+ * system ids. The sender gives each descriptor a handle and sends it in
+ * full, along with its handle, until the peer acknowledges it: the peer
+ * piggybacks the handles it has learned on the next message it sends back.
+ * Only then does the sender refer to the descriptor by its handle, so lost or
+ * reordered messages never leave a reference the peer can not resolve. A
+ * system id changes whenever a system restarts, which starts new tables on
+ * both sides. Should a peer still get a handle it does not know, it asks the
+ * sender to reset its table for it and start over.
+ */
+final class ClassTables {
+
+    static final String RESET = "reset";
+
+    /**
+     * The most descriptors given a handle per peer, the others are always
+     * sent in full.
+     */
+    static final int MAX_HANDLES = 4096;
+
+    private static final int FULL = 0;
+    private static final int HANDLE = 1;
+
+    /**
+     * The descriptors sent to a peer.
+     */
+    static final class Outgoing {
+        private final HashMap<ObjectStreamClass, Integer> handles = new HashMap<ObjectStreamClass, Integer>();
+        private final HashSet<Integer> acked = new HashSet<Integer>();
+        // Handles are never reused, so that late acknowledgements can not
+        // refer to another descriptor after a reset.
+        private int nextHandle = 1;
+
+        /**
+         * @return the handle of the descriptor if the peer knows it, its
+         *         negated handle if it has not acknowledged it yet, or 0 if it
+         *         should be sent without handle.
+         */
+        synchronized int lookup(ObjectStreamClass desc) {
+            Integer handle = handles.get(desc);
+            if (handle == null) {
+                if (handles.size() >= MAX_HANDLES) {
+                    return 0;
+                }
+                handle = nextHandle++;
+                handles.put(desc, handle);
+            }
+            return acked.contains(handle) ? handle : -handle;
+        }
+
+        synchronized void ack(String handles) {
+            for (String handle : handles.split(",")) {
+                if (RESET.equals(handle)) {
+                    this.handles.clear();
+                    acked.clear();
+                    return;
+                }
+                acked.add(Integer.valueOf(handle));
+            }
+        }
+    }
+
+    /**
+     * The descriptors received from a peer.
+     */
+    static final class Incoming {
+        private final ConcurrentHashMap<Integer, ObjectStreamClass> descriptors = new ConcurrentHashMap<Integer, ObjectStreamClass>();
+        private final ConcurrentLinkedQueue<String> pendingAcks = new ConcurrentLinkedQueue<String>();
+
+        void learn(int handle, ObjectStreamClass desc) {
+            descriptors.put(handle, desc);
+            // Acknowledged each time it is sent in full since the previous
+            // acknowledgement may have been lost.
+            pendingAcks.add(Integer.toString(handle));
+        }
+
+        ObjectStreamClass get(int handle) throws InvalidClassException {
+            ObjectStreamClass rc = descriptors.get(handle);
+            if (rc == null) {
+                pendingAcks.add(RESET);
+                throw new InvalidClassException("Unknown class descriptor handle: " + handle);
+            }
+            return rc;
+        }
+
+        /**
+         * @return the comma separated handles to acknowledge, or null if none.
+         */
+        String drainAcks() {
+            StringBuilder sb = null;
+            for (String ack; (ack = pendingAcks.poll()) != null;) {
+                if (sb == null) {
+                    sb = new StringBuilder();
+                } else {
+                    sb.append(',');
+                }
+                sb.append(ack);
+            }
+            return sb == null ? null : sb.toString();
+        }
+    }
+
+    private static final class TableObjectOutputStream extends ObjectOutputStream {
+        private final Outgoing table;
+        private final Metrics metrics;
+
+        TableObjectOutputStream(OutputStream out, Outgoing table, Metrics metrics) throws IOException {
+            super(out);
+            this.table = table;
+            this.metrics = metrics;
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            int handle = table.lookup(desc);
+            if (handle > 0) {
+                writeByte(HANDLE);
+                writeInt(handle);
+                metrics.increment(Metrics.DESCRIPTORS_SHARED);
+            } else {
+                writeByte(FULL);
+                writeInt(-handle);
+                super.writeClassDescriptor(desc);
+            }
+        }
+    }
+
+    private static final class TableObjectInputStream extends ClassLoadingObjectInputStream {
+        private final Incoming table;
+
+        TableObjectInputStream(InputStream in, ClassLoader classLoader, Incoming table) throws IOException {
+            super(in, classLoader);
+            this.table = table;
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int type = readByte();
+            int handle = readInt();
+            if (type == HANDLE) {
+                return table.get(handle);
+            }
+            ObjectStreamClass rc = super.readClassDescriptor();
+            if (handle != 0) {
+                table.learn(handle, rc);
+            }
+            return rc;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Outgoing> outgoing = new ConcurrentHashMap<String, Outgoing>();
+    private final ConcurrentHashMap<String, Incoming> incoming = new ConcurrentHashMap<String, Incoming>();
+    private final Metrics metrics;
+    private volatile String localId;
+
+    ClassTables(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the name of the system queue the peers know this system by,
+     *         null until the system id has been created.
+     */
+    String getLocalId() {
+        return localId;
+    }
+
+    void setLocalId(String localId) {
+        this.localId = localId;
+    }
+
+    void clear() {
+        localId = null;
+        outgoing.clear();
+        incoming.clear();
+    }
+
+    /**
+     * @return the id of the peer consuming from a destination if it is a
+     *         system queue, null otherwise.
+     */
+    static String peerOf(Destination destination) throws JMSException {
+        if (!(destination instanceof Queue)) {
+            return null;
+        }
+        // Explicit destinations may be consumed by any system, while the
+        // acknowledgements come back from the one that got the message.
+        String name = ((Queue) destination).getQueueName();
+        return isSystemQueue(name) ? name : null;
+    }
+
+    /**
+     * System queues are named after the system ids, which end with a random
+     * UUID.
+     */
+    private static boolean isSystemQueue(String name) {
+        int start = name.length() - 36;
+        if (start < 1 || name.charAt(start - 1) != ':') {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = name.charAt(start + i);
+            boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void serialize(Object object, String peer, OutputStream os) throws IOException {
+        ObjectOutputStream out = new TableObjectOutputStream(os, getOutgoing(peer), metrics);
+        out.writeObject(object);
+        out.flush();
+    }
+
+    Object deserialize(byte[] data, ClassLoader classLoader, String peer) throws IOException, ClassNotFoundException {
+        return new TableObjectInputStream(new ByteArrayInputStream(data), classLoader, getIncoming(peer)).readObject();
+    }
+
+    /**
+     * @return the acknowledgements to piggyback on a message sent to a peer,
+     *         or null if none.
+     */
+    String drainAcks(String peer) {
+        Incoming table = incoming.get(peer);
+        return table == null ? null : table.drainAcks();
+    }
+
+    void ack(String peer, String handles) {
+        Outgoing table = outgoing.get(peer);
+        if (table != null) {
+            table.ack(handles);
+        }
+    }
+
+    private Outgoing getOutgoing(String peer) {
+        Outgoing rc = outgoing.get(peer);
+        if (rc == null) {
+            rc = new Outgoing();
+            Outgoing existing = outgoing.putIfAbsent(peer, rc);
+            if (existing != null) {
+                rc = existing;
+            }
+        }
+        return rc;
+    }
+
+    private Incoming getIncoming(String peer) {
+        Incoming rc = incoming.get(peer);
+        if (rc == null) {
+            rc = new Incoming();
+            Incoming existing = incoming.putIfAbsent(peer, rc);
+            if (existing != null) {
+                rc = existing;
+            }
+        }
+        return rc;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates items per key and hands them over as one batch once either
+ * the maximum batch size is reached or the batch delay has elapsed since
+ * the first item of the batch was added.
+ * <p>
+ * Batches of the same key are flushed in the order they were filled:
+ * {@link #flush(Object, ArrayList)} is called while holding the coalescer's
+ * lock, so implementations should just hand the batch over to the thread that
+ * sends it and must not block.
+ */
+abstract class Coalescer<K, T> {
+
+    private final class Batch implements Runnable {
+        final K key;
+        final ArrayList<T> items;
+        TimerWheel.Timeout timeout;
+
+        Batch(K key) {
+            this.key = key;
+            this.items = new ArrayList<T>(maxSize);
+        }
+
+        public void run() {
+            synchronized (pending) {
+                if (pending.get(key) == this) {
+                    pending.remove(key);
+                    flush(key, items);
+                }
+            }
+        }
+    }
+
+    private final HashMap<K, Batch> pending = new HashMap<K, Batch>();
+    private final TimerWheel timer;
+    private final int maxSize;
+    private final long delay;
+
+    /**
+     * @param timer
+     *            The timer used to flush batches which do not fill up.
+     * @param maxSize
+     *            The number of items which causes a batch to get flushed.
+     * @param delay
+     *            The maximum time in milliseconds an item waits to be flushed.
+     */
+    Coalescer(TimerWheel timer, int maxSize, long delay) {
+        this.timer = timer;
+        this.maxSize = maxSize;
+        this.delay = delay;
+    }
+
+    void add(K key, T item) {
+        synchronized (pending) {
+            Batch batch = pending.get(key);
+            if (batch == null) {
+                batch = new Batch(key);
+                pending.put(key, batch);
+                batch.timeout = timer.schedule(batch, delay, TimeUnit.MILLISECONDS);
+            }
+            batch.items.add(item);
+            if (batch.items.size() >= maxSize) {
+                batch.timeout.cancel();
+                pending.remove(key);
+                flush(key, batch.items);
+            }
+        }
+    }
+
+    /**
+     * Called with a full or expired batch.
+     */
+    protected abstract void flush(K key, ArrayList<T> items);
+}
@@ -0,0 +1,481 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.jms.Destination;
+
+import org.fusesource.rmiviajms.Serializer;
+
+/**
+ * A compact binary encoding. Each value is written as a one byte tag followed
+ * by its data, with variable length integers. It knows the request and
+ * response envelopes, the primitive wrappers, strings, the common arrays and
+ * collections; any other value is written with Java serialization.
+ * <p>
+ * Unlike Java serialization, values shared by several arguments, or present
+ * several times in a collection, are written and read back once per
+ * occurrence.
+ */
+final class CompactSerializer implements Serializer {
+
+    static final String NAME = "compact";
+
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int BYTE = 3;
+    private static final int SHORT = 4;
+    private static final int CHAR = 5;
+    private static final int INT = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int STRING = 10;
+    private static final int BYTES = 11;
+    private static final int INTS = 12;
+    private static final int LONGS = 13;
+    private static final int DOUBLES = 14;
+    private static final int OBJECTS = 15;
+    private static final int ARRAY_LIST = 16;
+    private static final int LINKED_LIST = 17;
+    private static final int HASH_SET = 18;
+    private static final int LINKED_HASH_SET = 19;
+    private static final int HASH_MAP = 20;
+    private static final int LINKED_HASH_MAP = 21;
+    private static final int REQUEST = 32;
+    private static final int RESPONSE = 33;
+    private static final int REQUEST_BATCH = 34;
+    private static final int RESPONSE_BATCH = 35;
+    private static final int STREAM_CHUNK = 36;
+    private static final int SERIALIZED = 64;
+
+    public String getName() {
+        return NAME;
+    }
+
+    public void serialize(Object object, OutputStream out) throws IOException {
+        DataOutputStream dos = out instanceof MarshallingBuffer ? ((MarshallingBuffer) out).getDataOutput() : new DataOutputStream(out);
+        write(dos, object, new IdentityHashMap<Object, Object>());
+        dos.flush();
+    }
+
+    public Object deserialize(InputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        return read(new DataInputStream(in), classLoader);
+    }
+
+    private static void write(DataOutputStream out, Object value, IdentityHashMap<Object, Object> writing) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        if (writing.containsKey(value)) {
+            // A container holding itself: Java serialization handles the cycle.
+            writeSerialized(out, value);
+            return;
+        }
+        Class<?> clazz = value.getClass();
+        if (clazz == String.class) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (clazz == Integer.class) {
+            out.writeByte(INT);
+            writeVarLong(out, zigZag((Integer) value));
+        } else if (clazz == Long.class) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigZag((Long) value));
+        } else if (clazz == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (clazz == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (clazz == Float.class) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (clazz == Byte.class) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        } else if (clazz == Short.class) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        } else if (clazz == Character.class) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (clazz == Request.class) {
+            out.writeByte(REQUEST);
+            writeRequest(out, (Request) value, writing);
+        } else if (clazz == Response.class) {
+            out.writeByte(RESPONSE);
+            writeResponse(out, (Response) value, writing);
+        } else if (clazz == RequestBatch.class) {
+            RequestBatch batch = (RequestBatch) value;
+            out.writeByte(REQUEST_BATCH);
+            out.writeBoolean(batch.parallel);
+            writeVarLong(out, batch.requests.length);
+            for (Request request : batch.requests) {
+                writeRequest(out, request, writing);
+            }
+        } else if (clazz == ResponseBatch.class) {
+            ResponseBatch batch = (ResponseBatch) value;
+            out.writeByte(RESPONSE_BATCH);
+            writeVarLong(out, batch.responses.length);
+            for (Response response : batch.responses) {
+                writeResponse(out, response, writing);
+            }
+        } else if (clazz == StreamChunk.class) {
+            StreamChunk chunk = (StreamChunk) value;
+            out.writeByte(STREAM_CHUNK);
+            writeVarLong(out, chunk.streamId);
+            write(out, chunk.source, writing);
+            out.writeByte(chunk.kind);
+            write(out, chunk.elements, writing);
+            out.writeBoolean(chunk.last);
+            write(out, chunk.exception, writing);
+        } else if (clazz == byte[].class) {
+            byte[] array = (byte[]) value;
+            out.writeByte(BYTES);
+            writeVarLong(out, array.length);
+            out.write(array);
+        } else if (clazz == int[].class) {
+            int[] array = (int[]) value;
+            out.writeByte(INTS);
+            writeVarLong(out, array.length);
+            for (int i : array) {
+                writeVarLong(out, zigZag(i));
+            }
+        } else if (clazz == long[].class) {
+            long[] array = (long[]) value;
+            out.writeByte(LONGS);
+            writeVarLong(out, array.length);
+            for (long l : array) {
+                writeVarLong(out, zigZag(l));
+            }
+        } else if (clazz == double[].class) {
+            double[] array = (double[]) value;
+            out.writeByte(DOUBLES);
+            writeVarLong(out, array.length);
+            for (double d : array) {
+                out.writeDouble(d);
+            }
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            out.writeByte(OBJECTS);
+            writeString(out, clazz.getComponentType().getName());
+            writeVarLong(out, array.length);
+            writing.put(array, array);
+            for (Object element : array) {
+                write(out, element, writing);
+            }
+            writing.remove(array);
+        } else if (clazz == ArrayList.class) {
+            writeCollection(out, ARRAY_LIST, (Collection<?>) value, writing);
+        } else if (clazz == LinkedList.class) {
+            writeCollection(out, LINKED_LIST, (Collection<?>) value, writing);
+        } else if (clazz == HashSet.class) {
+            writeCollection(out, HASH_SET, (Collection<?>) value, writing);
+        } else if (clazz == LinkedHashSet.class) {
+            writeCollection(out, LINKED_HASH_SET, (Collection<?>) value, writing);
+        } else if (clazz == HashMap.class) {
+            writeMap(out, HASH_MAP, (Map<?, ?>) value, writing);
+        } else if (clazz == LinkedHashMap.class) {
+            writeMap(out, LINKED_HASH_MAP, (Map<?, ?>) value, writing);
+        } else {
+            writeSerialized(out, value);
+        }
+    }
+
+    private static void writeSerialized(DataOutputStream out, Object value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(value);
+        oos.close();
+        out.writeByte(SERIALIZED);
+        writeVarLong(out, baos.size());
+        baos.writeTo(out);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object read(DataInputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case BYTE:
+            return in.readByte();
+        case SHORT:
+            return in.readShort();
+        case CHAR:
+            return in.readChar();
+        case INT:
+            return (int) unZigZag(readVarLong(in));
+        case LONG:
+            return unZigZag(readVarLong(in));
+        case FLOAT:
+            return in.readFloat();
+        case DOUBLE:
+            return in.readDouble();
+        case STRING:
+            return readString(in);
+        case REQUEST:
+            return readRequest(in, classLoader);
+        case RESPONSE:
+            return readResponse(in, classLoader);
+        case REQUEST_BATCH: {
+            boolean parallel = in.readBoolean();
+            Request[] requests = new Request[readLength(in)];
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = readRequest(in, classLoader);
+            }
+            return new RequestBatch(requests, parallel);
+        }
+        case RESPONSE_BATCH: {
+            Response[] responses = new Response[readLength(in)];
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = readResponse(in, classLoader);
+            }
+            return new ResponseBatch(responses);
+        }
+        case STREAM_CHUNK: {
+            long streamId = readVarLong(in);
+            Destination source = (Destination) read(in, classLoader);
+            int kind = in.readByte();
+            Object[] elements = (Object[]) read(in, classLoader);
+            boolean last = in.readBoolean();
+            Throwable exception = (Throwable) read(in, classLoader);
+            return new StreamChunk(streamId, source, kind, elements, last, exception);
+        }
+        case BYTES: {
+            byte[] array = new byte[readLength(in)];
+            in.readFully(array);
+            return array;
+        }
+        case INTS: {
+            int[] array = new int[readLength(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = (int) unZigZag(readVarLong(in));
+            }
+            return array;
+        }
+        case LONGS: {
+            long[] array = new long[readLength(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = unZigZag(readVarLong(in));
+            }
+            return array;
+        }
+        case DOUBLES: {
+            double[] array = new double[readLength(in)];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = in.readDouble();
+            }
+            return array;
+        }
+        case OBJECTS: {
+            String componentType = readString(in);
+            int length = readLength(in);
+            Object[] array = componentType.equals("java.lang.Object") ? new Object[length] : (Object[]) Array.newInstance(Class.forName(componentType, false, classLoader), length);
+            for (int i = 0; i < length; i++) {
+                array[i] = read(in, classLoader);
+            }
+            return array;
+        }
+        case ARRAY_LIST: {
+            int size = readLength(in);
+            return readElements(in, classLoader, new ArrayList<Object>(size), size);
+        }
+        case LINKED_LIST:
+            return readElements(in, classLoader, new LinkedList<Object>(), readLength(in));
+        case HASH_SET: {
+            int size = readLength(in);
+            return readElements(in, classLoader, new HashSet<Object>(capacity(size)), size);
+        }
+        case LINKED_HASH_SET: {
+            int size = readLength(in);
+            return readElements(in, classLoader, new LinkedHashSet<Object>(capacity(size)), size);
+        }
+        case HASH_MAP: {
+            int size = readLength(in);
+            return readEntries(in, classLoader, new HashMap<Object, Object>(capacity(size)), size);
+        }
+        case LINKED_HASH_MAP: {
+            int size = readLength(in);
+            return readEntries(in, classLoader, new LinkedHashMap<Object, Object>(capacity(size)), size);
+        }
+        case SERIALIZED: {
+            byte[] data = new byte[readLength(in)];
+            in.readFully(data);
+            return new ClassLoadingObjectInputStream(new ByteArrayInputStream(data), classLoader).readObject();
+        }
+        default:
+            throw new StreamCorruptedException("Unknown tag: " + tag);
+        }
+    }
+
+    private static void writeRequest(DataOutputStream out, Request request, IdentityHashMap<Object, Object> writing) throws IOException {
+        writeVarLong(out, request.objectId);
+        writeVarLong(out, request.requestId);
+        out.writeLong(request.methodHash);
+        write(out, request.args, writing);
+    }
+
+    private static Request readRequest(DataInputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        long objectId = readVarLong(in);
+        long requestId = readVarLong(in);
+        long methodHash = in.readLong();
+        Object[] args = (Object[]) read(in, classLoader);
+        return new Request(objectId, methodHash, args, requestId);
+    }
+
+    private static void writeResponse(DataOutputStream out, Response response, IdentityHashMap<Object, Object> writing) throws IOException {
+        writeVarLong(out, response.requestId);
+        write(out, response.result, writing);
+        write(out, response.exception, writing);
+    }
+
+    private static Response readResponse(DataInputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        long requestId = readVarLong(in);
+        Object result = read(in, classLoader);
+        Throwable exception = (Throwable) read(in, classLoader);
+        return new Response(requestId, result, exception);
+    }
+
+    private static void writeCollection(DataOutputStream out, int tag, Collection<?> collection, IdentityHashMap<Object, Object> writing) throws IOException {
+        out.writeByte(tag);
+        writeVarLong(out, collection.size());
+        writing.put(collection, collection);
+        for (Object element : collection) {
+            write(out, element, writing);
+        }
+        writing.remove(collection);
+    }
+
+    private static Collection<Object> readElements(DataInputStream in, ClassLoader classLoader, Collection<Object> rc, int size) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < size; i++) {
+            rc.add(read(in, classLoader));
+        }
+        return rc;
+    }
+
+    private static void writeMap(DataOutputStream out, int tag, Map<?, ?> map, IdentityHashMap<Object, Object> writing) throws IOException {
+        out.writeByte(tag);
+        writeVarLong(out, map.size());
+        writing.put(map, map);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(out, entry.getKey(), writing);
+            write(out, entry.getValue(), writing);
+        }
+        writing.remove(map);
+    }
+
+    private static Map<Object, Object> readEntries(DataInputStream in, ClassLoader classLoader, Map<Object, Object> rc, int size) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < size; i++) {
+            Object key = read(in, classLoader);
+            rc.put(key, read(in, classLoader));
+        }
+        return rc;
+    }
+
+    private static int capacity(int size) {
+        return Math.max(16, (int) (size / .75f) + 1);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (isAscii(value)) {
+            // the UTF-8 encoding is the low byte of each char.
+            writeVarLong(out, value.length());
+            out.writeBytes(value);
+            return;
+        }
+        byte[] data = value.getBytes("UTF-8");
+        writeVarLong(out, data.length);
+        out.write(data);
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] data = new byte[readLength(in)];
+        in.readFully(data);
+        return new String(data, "UTF-8");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long rc = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            rc |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return rc;
+            }
+        }
+        throw new StreamCorruptedException("Malformed variable length integer");
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("Invalid length: " + length);
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.rmi.RemoteException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The credits a client holds to send one way requests to an object. Each one
+ * way request uses a credit, and the remote system grants credits back once
+ * it has executed the requests, so at most {@link #size} one way requests are
+ * ever pending on the broker or in the sender lanes. A request which fails to
+ * be sent gives its credit back right away.
+ * <p>
+ * Grants can get lost, and the remote system forgets the credits it owes
+ * when it is reset. So once the window has been out of credits for the
+ * resync time without getting any, it assumes they are lost and refills
+ * itself.
+ */
+final class CreditWindow {
+
+    final int size;
+    private final long resync;
+    private final Metrics metrics;
+    private int credits;
+    private long exhaustedAt;
+    private boolean closed;
+
+    /**
+     * @param resync
+     *            How long to go without credits before refilling the window,
+     *            in milliseconds, 0 to wait for the grants forever.
+     */
+    CreditWindow(int size, long resync, Metrics metrics) {
+        this.size = size;
+        this.resync = resync;
+        this.metrics = metrics;
+        this.credits = size;
+    }
+
+    /**
+     * Takes a credit, waiting for one to be granted if needed.
+     * 
+     * @param drop
+     *            true to not wait when there are no credits left.
+     * @param timeout
+     *            How long to wait for a credit, in milliseconds.
+     * @return false if no credit was available.
+     */
+    synchronized boolean acquire(boolean drop, long timeout) throws RemoteException {
+        long deadline = timeout == Long.MAX_VALUE ? 0 : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            while (credits == 0) {
+                if (closed) {
+                    throw new RemoteException("RemoteSystem reset");
+                }
+                long now = System.nanoTime();
+                long untilResync = resync > 0 ? exhaustedAt + TimeUnit.MILLISECONDS.toNanos(resync) - now : Long.MAX_VALUE;
+                if (untilResync <= 0) {
+                    credits = size;
+                    metrics.increment(Metrics.CREDITS_RESYNCED);
+                    break;
+                }
+                if (drop) {
+                    return false;
+                }
+                long wait = untilResync;
+                if (deadline != 0) {
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new RemoteException("Timed out waiting for one way credits");
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                if (wait == Long.MAX_VALUE) {
+                    wait();
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for one way credits", e);
+        }
+        if (--credits == 0) {
+            exhaustedAt = System.nanoTime();
+        }
+        return true;
+    }
+
+    synchronized void grant(int count) {
+        credits = Math.min(size, credits + count);
+        notifyAll();
+    }
+
+    /**
+     * Wakes up the callers waiting for credits, they fail from now on.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+}
@@ -16,33 +16,54 @@
 package org.fusesource.rmiviajms.internal;
 
 import java.rmi.NoSuchObjectException;
+import java.rmi.UnmarshalException;
 
-import javax.jms.ObjectMessage;
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
+import javax.jms.Message;
 
 /**
  * This task demarshalls an received message, invokes the exported object and
  * sends the response via the sender thread.
  */
 final class DispatchTask implements Runnable {
-    private final ObjectMessage msg;
+    private final Message msg;
     private final boolean oneway;
+    private final Envelope envelope;
     private final JMSRemoteSystem remoteSystem;
 
-    public DispatchTask(JMSRemoteSystem remoteSystem, ObjectMessage msg, boolean oneway) {
+    public DispatchTask(JMSRemoteSystem remoteSystem, Message msg, boolean oneway) {
         this.remoteSystem = remoteSystem;
         this.msg = msg;
         this.oneway = oneway;
+        this.envelope = null;
         //System.out.println("Created DispatchTask" + msg);
     }
 
+    /**
+     * Dispatches an envelope message whose header has already been read.
+     */
+    public DispatchTask(JMSRemoteSystem remoteSystem, Message msg, Envelope envelope) {
+        this.remoteSystem = remoteSystem;
+        this.msg = msg;
+        this.oneway = envelope.type == Envelope.TYPE_ONEWAY;
+        this.envelope = envelope;
+    }
+
     public void run() {
+        int executed = 1;
         try {
             //System.out.println("Executing DispatchTask" + msg);
-            long oid = msg.getLongProperty(JMSRemoteSystem.MSG_PROP_OBJECT);
+            long oid;
             long requestId = -1;
-            if (!oneway) {
-                requestId = msg.getLongProperty(JMSRemoteSystem.MSG_PROP_REQUEST);
+            if (envelope != null) {
+                oid = envelope.objectId;
+                requestId = envelope.requestId;
+            } else {
+                oid = msg.getLongProperty(JMSRemoteSystem.MSG_PROP_OBJECT);
+                if (!oneway) {
+                    requestId = msg.getLongProperty(JMSRemoteSystem.MSG_PROP_REQUEST);
+                }
             }
 
             Skeleton exportedObject = remoteSystem.exportedSkeletonsById.get(oid);
@@ -53,17 +74,38 @@ final class DispatchTask implements Runnable {
             } else {
                 try {
                     Thread.currentThread().setContextClassLoader(remoteSystem.getUserClassLoader(this));
-                    request = (Request) (msg).getObject();
+                    Object body = envelope != null ? envelope.toRequest(remoteSystem.getCodec().decode((BytesMessage) msg, envelope)) : remoteSystem.getCodec().decode(msg);
+                    if (body instanceof RequestBatch) {
+                        Response responses[] = exportedObject.invoke((RequestBatch) body);
+                        executed = responses.length;
+                        if (!oneway) {
+                            remoteSystem.sendResponse(msg, new ResponseBatch(responses));
+                        } else {
+                            for (Response r : responses) {
+                                if (r.exception != null) {
+                                    r.exception.printStackTrace();
+                                }
+                            }
+                        }
+                        return;
+                    }
+                    request = (Request) body;
                     response = exportedObject.invoke(request);
                 } catch (Throwable thrown) {
                     System.err.println("Error in rmi dispatch for " + exportedObject + "-" + exportedObject.getTargetClassLoader() + " / " + remoteSystem.getUserClassLoader());
                     thrown.printStackTrace();
                     
+                    if (request == null && thrown instanceof JMSException) {
+                        thrown = new UnmarshalException("Could not unmarshall request: " + thrown.getMessage(), (JMSException) thrown);
+                    }
                     response = new Response(requestId, null, thrown);
                 }
             }
 
-            if (!oneway) {
+            if (!oneway && request == null) {
+                // Could not get to the requests, a batch fails as a whole.
+                remoteSystem.sendFailure(msg, requestId, response.exception);
+            } else if (!oneway) {
                 remoteSystem.sendResponse(msg, response);
             } else {
                 if (response.exception != null) {
@@ -75,6 +117,10 @@ final class DispatchTask implements Runnable {
             e.printStackTrace();
         } catch (Throwable thrown) {
             thrown.printStackTrace();
+        } finally {
+            if (oneway) {
+                remoteSystem.grantCredits(msg, executed);
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * The fixed layout header of the requests and responses sent in the binary
+ * envelope format. It carries everything needed to route a message, so that
+ * receivers can dispatch or reject it before decoding the body:
+ * 
+ * <pre>
+ * version     byte
+ * type        byte
+ * flags       byte
+ * object id   long
+ * request id  long, 0 for one way requests
+ * method hash long, 0 for responses
+ * deadline    long, in milliseconds since the epoch, 0 if none
+ * serializer  UTF string
+ * </pre>
+ * 
+ * The body follows: the arguments of a request, or the result or exception of
+ * a response. Envelope messages are {@link BytesMessage}s without any JMS type
+ * or property.
+ */
+final class Envelope {
+
+    static final int VERSION = 1;
+
+    static final int TYPE_REQUEST = 1;
+    static final int TYPE_ONEWAY = 2;
+    static final int TYPE_RESPONSE = 3;
+
+    /**
+     * The body is deflated.
+     */
+    static final int FLAG_DEFLATED = 0x01;
+    /**
+     * The body of the response is the exception thrown by the method.
+     */
+    static final int FLAG_EXCEPTION = 0x02;
+
+    final int type;
+    final int flags;
+    final long objectId;
+    final long requestId;
+    final long methodHash;
+    final long deadline;
+    final String serializer;
+
+    Envelope(int type, int flags, long objectId, long requestId, long methodHash, long deadline, String serializer) {
+        this.type = type;
+        this.flags = flags;
+        this.objectId = objectId;
+        this.requestId = requestId;
+        this.methodHash = methodHash;
+        this.deadline = deadline;
+        this.serializer = serializer;
+    }
+
+    static Envelope request(Request request, boolean oneway, long timeout) {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        if (deadline < 0) {
+            // overflowed, it is as good as never.
+            deadline = 0;
+        }
+        return new Envelope(oneway ? TYPE_ONEWAY : TYPE_REQUEST, 0, request.objectId, oneway ? 0 : request.requestId, request.methodHash, deadline, null);
+    }
+
+    static Envelope response(Response response, Envelope request) {
+        return new Envelope(TYPE_RESPONSE, response.exception != null ? FLAG_EXCEPTION : 0, request.objectId, response.requestId, 0, 0, null);
+    }
+
+    static boolean isEnvelope(Message msg) throws JMSException {
+        return msg instanceof BytesMessage && msg.getJMSType() == null;
+    }
+
+    /**
+     * Reads the header of a message from its start.
+     * 
+     * @throws JMSException
+     *             if the message is not an envelope of a supported version.
+     */
+    static Envelope read(Message msg) throws JMSException {
+        if (!isEnvelope(msg)) {
+            throw new JMSException("Not an envelope message");
+        }
+        BytesMessage bytesMessage = (BytesMessage) msg;
+        bytesMessage.reset();
+        int version = bytesMessage.readUnsignedByte();
+        if (version != VERSION) {
+            throw new JMSException("Unsupported envelope version: " + version);
+        }
+        int type = bytesMessage.readUnsignedByte();
+        int flags = bytesMessage.readUnsignedByte();
+        long objectId = bytesMessage.readLong();
+        long requestId = bytesMessage.readLong();
+        long methodHash = bytesMessage.readLong();
+        long deadline = bytesMessage.readLong();
+        String serializer = bytesMessage.readUTF();
+        return new Envelope(type, flags, objectId, requestId, methodHash, deadline, serializer);
+    }
+
+    /**
+     * Writes the header with additional flags and the serializer of the body.
+     */
+    void write(BytesMessage msg, int flags, String serializer) throws JMSException {
+        msg.writeByte((byte) VERSION);
+        msg.writeByte((byte) type);
+        msg.writeByte((byte) (this.flags | flags));
+        msg.writeLong(objectId);
+        msg.writeLong(requestId);
+        msg.writeLong(methodHash);
+        msg.writeLong(deadline);
+        msg.writeUTF(serializer);
+    }
+
+    /**
+     * @param args
+     *            The decoded body of a request.
+     */
+    Request toRequest(Object args) {
+        return new Request(objectId, methodHash, (Object[]) args, requestId);
+    }
+
+    boolean isExpired(long now) {
+        return deadline != 0 && deadline < now;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Envelope{type=" + type + ", flags=" + flags + ", objectId=" + objectId + ", requestId=" + requestId + ", methodHash=" + methodHash + ", deadline=" + deadline + "}";
+    }
+}
@@ -22,6 +22,7 @@ import org.fusesource.rmiviajms.internal.JMSTemplate.TemplateClosedException;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.rmi.Remote;
+import java.rmi.UnmarshalException;
 
 /**
  * @author chirino
@@ -33,6 +34,7 @@ class ExplictDestinationSkeleton extends Skeleton implements Runnable {
     private final AtomicBoolean running = new AtomicBoolean(false);
     private final JMSRemoteRef ref;
     Thread receiveThread;
+    private MessageListener listener;
 
     ExplictDestinationSkeleton(JMSRemoteSystem remoteSystem, JMSRemoteRef ref, Object target) {
         super(remoteSystem, ref, target);
@@ -42,7 +44,24 @@ class ExplictDestinationSkeleton extends Skeleton implements Runnable {
     }
 
     public void start() throws JMSException, TemplateClosedException {
-        if( receiveThread == null ) {
+        if( remoteSystem.asyncReceive ) {
+            if( listener == null ) {
+                running.set(true);
+                listener = new MessageListener() {
+                    public void onMessage(Message msg) {
+                        if( !running.get() || !remoteSystem.running.get() ) {
+                            return;
+                        }
+                        try {
+                            dispatch(msg);
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                template.listen(ref.getDestination(), listener);
+            }
+        } else if( receiveThread == null ) {
             running.set(true);
             //Create the consumer so we don't miss messages:
             template.getMessageConsumer(ref.getDestination());
@@ -59,7 +78,12 @@ class ExplictDestinationSkeleton extends Skeleton implements Runnable {
     }
 
     public void stop() throws InterruptedException {
-        if( receiveThread != null ) {
+        if( listener != null ) {
+            running.set(false);
+            // Returns once the message being delivered has been handed over.
+            template.close();
+            listener = null;
+        } else if( receiveThread != null ) {
             running.set(false);
             receiveThread.join();
             receiveThread=null;
@@ -74,14 +98,7 @@ class ExplictDestinationSkeleton extends Skeleton implements Runnable {
                 Message msg = consumer.receive(500);
                 
                 if( msg!=null ) {
-                    if( JMSRemoteSystem.MSG_TYPE_REQUEST.equals(msg.getJMSType()) ) {
-                        // Handle decoding the message in the dispatch thread.
-                        remoteSystem.getDispatchThreads().execute(new DispatchTask((ObjectMessage)msg, false));
-                    } else if( JMSRemoteSystem.MSG_TYPE_ONEWAY.equals(msg.getJMSType()) ) {
-                        // Handle decoding the message in the dispatch thread.
-                        remoteSystem.getDispatchThreads().execute(new DispatchTask((ObjectMessage)msg, true));
-                    }
-
+                    dispatch(msg);
                 }
             } 
             catch (TemplateClosedException tce) {
@@ -96,29 +113,87 @@ class ExplictDestinationSkeleton extends Skeleton implements Runnable {
         }
     }
 
+    private void dispatch(Message msg) throws JMSException {
+        if( Envelope.isEnvelope(msg) ) {
+            receiveEnvelope(msg);
+        } else if( JMSRemoteSystem.MSG_TYPE_REQUEST.equals(msg.getJMSType()) || JMSRemoteSystem.MSG_TYPE_REQUEST_BATCH.equals(msg.getJMSType()) ) {
+            // Handle decoding the message in the dispatch thread.
+            remoteSystem.getDispatchThreads().execute(new DispatchTask(msg, false, null));
+        } else if( JMSRemoteSystem.MSG_TYPE_ONEWAY.equals(msg.getJMSType()) ) {
+            // Handle decoding the message in the dispatch thread.
+            remoteSystem.getDispatchThreads().execute(new DispatchTask(msg, true, null));
+        } else if( JMSRemoteSystem.MSG_TYPE_ONEWAY_BATCH.equals(msg.getJMSType()) ) {
+            // One batch at a time, so that the calls stay in order.
+            remoteSystem.getOnewayBatchExecutor(ref.getObjectId()).execute(new DispatchTask(msg, true, null));
+        }
+    }
+
+    private void receiveEnvelope(Message msg) {
+        try {
+            Envelope envelope = Envelope.read(msg);
+            if( envelope.type != Envelope.TYPE_REQUEST && envelope.type != Envelope.TYPE_ONEWAY ) {
+                throw new JMSException("Unexpected envelope type: " + envelope.type);
+            }
+            if( envelope.isExpired(System.currentTimeMillis()) ) {
+                // The caller has given up on it already.
+                remoteSystem.metrics.increment(Metrics.REQUESTS_EXPIRED);
+                return;
+            }
+            // Handle decoding the message in the dispatch thread.
+            remoteSystem.getDispatchThreads().execute(new DispatchTask(msg, envelope.type == Envelope.TYPE_ONEWAY, envelope));
+        } catch (JMSException e) {
+            // Not one of ours, or sent by an incompatible version.
+            e.printStackTrace();
+        }
+    }
+
     /**
      * This task demarshalls an received message, invokes the exported object
      * and sends the response via the sender thread.
      */
     private class DispatchTask implements Runnable {
-        private final ObjectMessage msg;
+        private final Message msg;
         private final boolean oneway;
+        private final Envelope envelope;
 
-        public DispatchTask(ObjectMessage msg, boolean oneway) {
+        public DispatchTask(Message msg, boolean oneway, Envelope envelope) {
             this.msg = msg;
             this.oneway = oneway;
+            this.envelope = envelope;
         }
 
         public void run() {
+            int executed = 1;
             try {
                 Thread.currentThread().setContextClassLoader(getTargetClassLoader());
-                Request request = (Request)(msg).getObject();
+                Object body = envelope != null ? envelope.toRequest(remoteSystem.getCodec().decode((BytesMessage) msg, envelope)) : remoteSystem.getCodec().decode(msg);
+                if ( body instanceof RequestBatch ) {
+                    Response responses[] = invoke((RequestBatch)body);
+                    executed = responses.length;
+                    if ( !oneway ) {
+                        remoteSystem.sendResponse(msg, new ResponseBatch(responses));
+                    }
+                    return;
+                }
+                Request request = (Request)body;
                 Response response = invoke(request);
                 if ( !oneway ) {
                     remoteSystem.sendResponse(msg, response);
                 }
             } catch (JMSException e) {
-                // The request message must not have been properly created.. ignore for now.
+                // The request message must not have been properly created.
+                e.printStackTrace();
+                if ( !oneway ) {
+                    try {
+                        remoteSystem.sendFailure(msg, envelope != null ? envelope.requestId : msg.getLongProperty(JMSRemoteSystem.MSG_PROP_REQUEST),
+                                new UnmarshalException("Could not unmarshall request: " + e.getMessage(), e));
+                    } catch (JMSException ignore) {
+                    }
+                }
+            } finally {
+                if ( oneway ) {
+                    remoteSystem.grantCredits(msg, executed);
+                }
             }
         }
     }
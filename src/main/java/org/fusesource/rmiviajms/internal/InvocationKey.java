@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.Arrays;
+
+/**
+ * Identifies an invocation by its target object, method signature and
+ * argument values, so that identical calls can share a result.
+ */
+final class InvocationKey {
+    private final Object targetKey;
+    private final String signature;
+    private final Object[] args;
+    private final int hashCode;
+
+    InvocationKey(Object targetKey, String signature, Object[] args) {
+        this.targetKey = targetKey;
+        this.signature = signature;
+        this.args = args == null ? new Object[0] : args.clone();
+        this.hashCode = (targetKey.hashCode() * 31 + signature.hashCode()) * 31 + Arrays.deepHashCode(this.args);
+    }
+
+    Object getTargetKey() {
+        return targetKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof InvocationKey))
+            return false;
+        InvocationKey key = (InvocationKey) o;
+        return hashCode == key.hashCode && targetKey.equals(key.targetKey) && signature.equals(key.signature) && Arrays.deepEquals(args, key.args);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
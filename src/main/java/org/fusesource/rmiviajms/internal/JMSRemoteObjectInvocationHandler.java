@@ -17,13 +17,19 @@
 package org.fusesource.rmiviajms.internal;
 
 import java.lang.reflect.Method;
+import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.rmi.UnexpectedException;
 import java.rmi.server.RemoteObjectInvocationHandler;
 import java.rmi.server.RemoteRef;
 
 /**
  * This class wraps the regular {@link RemoteObjectInvocationHandler} and converts {@link RemoteException}s to 
  * {@link RuntimeException}s so that implementations need not throw RemoteException
+ * <p>
+ * Invocations are handed straight to the {@link JMSRemoteRef}, bypassing the
+ * method hash lookup and the proxy checks done by the JDK handler (which
+ * reject CGLib proxies and methods of interfaces not extending Remote).
  * 
  * @author cmacnaug
  * @version 1.0
@@ -35,10 +41,39 @@ public class JMSRemoteObjectInvocationHandler extends RemoteObjectInvocationHand
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(proxy, method, args);
+        }
         try {
-            return super.invoke(proxy, method, args);
+            return ((JMSRemoteRef) ref).invoke((Remote) proxy, method, args, 0);
         } catch (RemoteException re) {
             throw new RuntimeException(re);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            for (Class<?> declared : method.getExceptionTypes()) {
+                if (declared.isInstance(e)) {
+                    throw e;
+                }
+            }
+            throw new RuntimeException(new UnexpectedException("unexpected exception", e));
+        }
+    }
+
+    private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("hashCode")) {
+            return hashCode();
+        } else if (name.equals("equals")) {
+            Object other = args[0];
+            if (proxy == other) {
+                return true;
+            }
+            return other instanceof Remote && JMSRemoteRef.isRemoteProxy(other) && ref.remoteEquals(JMSRemoteRef.getJMSRemoteRefFromProxy((Remote) other));
+        } else if (name.equals("toString")) {
+            return "Proxy[" + ref.remoteToString() + "]";
+        } else {
+            throw new IllegalArgumentException("unexpected Object method: " + method);
         }
     }
 }
@@ -17,6 +17,7 @@
 package org.fusesource.rmiviajms.internal;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.lang.annotation.Annotation;
@@ -34,13 +35,17 @@ import java.rmi.server.RemoteRef;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import javax.jms.Destination;
 
 import org.fusesource.rmiviajms.Oneway;
+import org.fusesource.rmiviajms.RemoteFuture;
 
 /**
  * 
@@ -75,6 +80,12 @@ final public class JMSRemoteRef implements RemoteRef {
     //CGLib enhanced subclass:
     transient private Remote proxy;
 
+    //Lazily created key identifying the remote object:
+    transient private Object targetKey;
+
+    //Lazily computed invocation details of the proxied methods:
+    transient private final ConcurrentHashMap<Method, MethodInfo> methodInfos = new ConcurrentHashMap<Method, MethodInfo>();
+
     public JMSRemoteRef() {
     }
 
@@ -188,6 +199,28 @@ final public class JMSRemoteRef implements RemoteRef {
         return false;
     }
 
+    /**
+     * Tests if a given method should be invoked asynchronously. That is the
+     * case for methods returning a {@link Future} or a {@link RemoteFuture}.
+     * 
+     * @param method
+     *            The mehod.
+     */
+    static boolean isAsync(Method method) {
+        Class<?> rc = method.getReturnType();
+        return rc == Future.class || rc == RemoteFuture.class;
+    }
+
+    /**
+     * Tests if the result of a given method should be streamed back to the
+     * client. That is the case for methods returning an {@link Iterator}, an
+     * {@link Iterable} or an {@link InputStream}.
+     */
+    static boolean isStreamed(Method method) {
+        Class<?> rc = method.getReturnType();
+        return rc == Iterator.class || rc == Iterable.class || rc == InputStream.class;
+    }
+
     public static <T> T toProxy(String destination, Class<T> mainClass, Class<?>... extraInterface) throws RemoteException {
         if (mainClass == null) {
             throw new IllegalArgumentException("mainClass cannot be null.");
@@ -281,7 +314,27 @@ final public class JMSRemoteRef implements RemoteRef {
     // RemoteRef interface
 
     public Object invoke(Remote obj, Method method, Object[] params, long opnum) throws Exception {
-        return JMSRemoteSystem.INSTANCE.invoke(this, method, params);
+        return JMSRemoteSystem.INSTANCE.invoke(this, getMethodInfo(method), params);
+    }
+
+    /**
+     * Gets the invocation details of a method, computing them on first use.
+     * Note that one way annotations added after a method has been invoked
+     * through this reference will not be picked up for that method.
+     * 
+     * @param method
+     *            The proxied method.
+     */
+    MethodInfo getMethodInfo(Method method) {
+        MethodInfo info = methodInfos.get(method);
+        if (info == null) {
+            info = new MethodInfo(method);
+            MethodInfo existing = methodInfos.putIfAbsent(method, info);
+            if (existing != null) {
+                info = existing;
+            }
+        }
+        return info;
     }
 
     public String getRefClass(ObjectOutput out) {
@@ -362,11 +415,65 @@ final public class JMSRemoteRef implements RemoteRef {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Identifies the remote object targeted by this reference in hash based
+     * collections: references to the same object have equal target keys.
+     */
+    Object getTargetKey() {
+        if (targetKey == null) {
+            targetKey = targetKey(destination, objectId);
+        }
+        return targetKey;
+    }
+
+    /**
+     * @return the key identifying the object with the given id at the given
+     *         destination.
+     */
+    static Object targetKey(Destination destination, long objectId) {
+        return new TargetKey(destination, objectId);
+    }
+
+    private static final class TargetKey {
+        private final Destination destination;
+        private final long objectId;
+        private final int hashCode;
+
+        TargetKey(Destination destination, long objectId) {
+            this.destination = destination;
+            this.objectId = objectId;
+            this.hashCode = destination.hashCode() ^ (int) (objectId ^ (objectId >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (o == null || getClass() != o.getClass())
+                return false;
+            TargetKey other = (TargetKey) o;
+            return objectId == other.objectId && destination.equals(other.destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
     // Accessors
     public Class<?>[] getInterfaces() {
         return interfaces;
     }
 
+    /**
+     * @return the class being proxied by CGLib or null if the proxy is a
+     *         java.lang.reflect.Proxy.
+     */
+    public Class<?> getSuperclass() {
+        return superclass;
+    }
+
     public long getObjectId() {
         return objectId;
     }
@@ -21,15 +21,26 @@ import org.fusesource.rmiviajms.internal.JMSTemplate.TemplateClosedException;
 
 import javax.jms.*;
 
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.rmi.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 /**
  * @author chirino
@@ -38,13 +49,57 @@ public abstract class JMSRemoteSystem {
 
     public static final String REMOTE_SYSTEM_CLASS = System.getProperty("org.fusesource.rmiviajms.REMOTE_SYSTEM_CLASS", "org.fusesource.rmiviajms.internal.ActiveMQRemoteSystem");
     public static final long REQUEST_TIMEOUT = new Long(System.getProperty("org.fusesource.rmiviajms.REQUEST_TIMEOUT", "" + Long.MAX_VALUE));
+    public static final int SENDER_LANES = new Integer(System.getProperty("org.fusesource.rmiviajms.SENDER_LANES", "1"));
+    public static final boolean DIRECT_SEND = Boolean.valueOf(System.getProperty("org.fusesource.rmiviajms.DIRECT_SEND", "false"));
+    public static final boolean ASYNC_RECEIVE = Boolean.valueOf(System.getProperty("org.fusesource.rmiviajms.ASYNC_RECEIVE", "false"));
+    public static final int ONEWAY_BATCH_SIZE = new Integer(System.getProperty("org.fusesource.rmiviajms.ONEWAY_BATCH_SIZE", "1"));
+    public static final long ONEWAY_BATCH_DELAY = new Long(System.getProperty("org.fusesource.rmiviajms.ONEWAY_BATCH_DELAY", "10"));
+    public static final int RESPONSE_BATCH_SIZE = new Integer(System.getProperty("org.fusesource.rmiviajms.RESPONSE_BATCH_SIZE", "1"));
+    public static final long RESPONSE_BATCH_DELAY = new Long(System.getProperty("org.fusesource.rmiviajms.RESPONSE_BATCH_DELAY", "5"));
+    public static final int REQUEST_WINDOW = new Integer(System.getProperty("org.fusesource.rmiviajms.REQUEST_WINDOW", "0"));
+    public static final RequestWindowStrategy REQUEST_WINDOW_STRATEGY = RequestWindowStrategy.valueOf(System.getProperty("org.fusesource.rmiviajms.REQUEST_WINDOW_STRATEGY", "BLOCK"));
+    public static final int REQUEST_WINDOW_QUEUE = new Integer(System.getProperty("org.fusesource.rmiviajms.REQUEST_WINDOW_QUEUE", "1000"));
+    public static final int ONEWAY_CREDITS = new Integer(System.getProperty("org.fusesource.rmiviajms.ONEWAY_CREDITS", "0"));
+    public static final boolean ONEWAY_CREDIT_DROP = Boolean.valueOf(System.getProperty("org.fusesource.rmiviajms.ONEWAY_CREDIT_DROP", "false"));
+    public static final long ONEWAY_CREDIT_RESYNC = new Long(System.getProperty("org.fusesource.rmiviajms.ONEWAY_CREDIT_RESYNC", "30000"));
+    public static final String RETRY_POLICY_CLASS = System.getProperty("org.fusesource.rmiviajms.RETRY_POLICY_CLASS", ExponentialBackoffRetryPolicy.class.getName());
+    public static final double CIRCUIT_BREAKER_RATIO = new Double(System.getProperty("org.fusesource.rmiviajms.CIRCUIT_BREAKER_RATIO", "0"));
+    public static final int CIRCUIT_BREAKER_WINDOW = new Integer(System.getProperty("org.fusesource.rmiviajms.CIRCUIT_BREAKER_WINDOW", "10"));
+    public static final long CIRCUIT_BREAKER_OPEN_TIME = new Long(System.getProperty("org.fusesource.rmiviajms.CIRCUIT_BREAKER_OPEN_TIME", "5000"));
+    public static final int CIRCUIT_BREAKER_HALF_OPEN_CALLS = new Integer(System.getProperty("org.fusesource.rmiviajms.CIRCUIT_BREAKER_HALF_OPEN_CALLS", "1"));
+    public static final LocalCallMode LOCAL_CALL_MODE = LocalCallMode.valueOf(System.getProperty("org.fusesource.rmiviajms.LOCAL_CALL_MODE", "BROKER"));
+    public static final int STREAM_CHUNK_SIZE = new Integer(System.getProperty("org.fusesource.rmiviajms.STREAM_CHUNK_SIZE", "100"));
+    public static final int STREAM_PREFETCH = new Integer(System.getProperty("org.fusesource.rmiviajms.STREAM_PREFETCH", "2"));
+    public static final int STREAM_BLOCK_SIZE = new Integer(System.getProperty("org.fusesource.rmiviajms.STREAM_BLOCK_SIZE", "65536"));
+    public static final int STREAM_BYTES_THRESHOLD = new Integer(System.getProperty("org.fusesource.rmiviajms.STREAM_BYTES_THRESHOLD", "1048576"));
+    public static final long STREAM_IDLE_TIMEOUT = new Long(System.getProperty("org.fusesource.rmiviajms.STREAM_IDLE_TIMEOUT", "60000"));
+    public static final int COMPRESSION_THRESHOLD = new Integer(System.getProperty("org.fusesource.rmiviajms.COMPRESSION_THRESHOLD", "0"));
+    public static final int COMPRESSION_LEVEL = new Integer(System.getProperty("org.fusesource.rmiviajms.COMPRESSION_LEVEL", "" + Deflater.BEST_SPEED));
+    public static final String SERIALIZER = System.getProperty("org.fusesource.rmiviajms.SERIALIZER", JavaSerializer.NAME);
+    public static final String SERIALIZER_CLASSES = System.getProperty("org.fusesource.rmiviajms.SERIALIZER_CLASSES", "");
+    public static final boolean SHARE_CLASS_DESCRIPTORS = Boolean.valueOf(System.getProperty("org.fusesource.rmiviajms.SHARE_CLASS_DESCRIPTORS", "false"));
+    public static final boolean BINARY_ENVELOPE = Boolean.valueOf(System.getProperty("org.fusesource.rmiviajms.BINARY_ENVELOPE", "false"));
+    public static final long TIMER_TICK = new Long(System.getProperty("org.fusesource.rmiviajms.TIMER_TICK", "10"));
 
     protected static final String MSG_TYPE_ONEWAY = "rmi:oneway";
+    protected static final String MSG_TYPE_ONEWAY_BATCH = "rmi:oneway-batch";
     protected static final String MSG_TYPE_REQUEST = "rmi:request";
     protected static final String MSG_TYPE_RESPONSE = "rmi:response";
+    protected static final String MSG_TYPE_REQUEST_BATCH = "rmi:request-batch";
+    protected static final String MSG_TYPE_RESPONSE_BATCH = "rmi:response-batch";
+    protected static final String MSG_TYPE_CREDIT = "rmi:credit";
+    protected static final String MSG_TYPE_STREAM_CHUNK = "rmi:stream-chunk";
+    protected static final String MSG_TYPE_STREAM_DEMAND = "rmi:stream-demand";
 
     protected static final String MSG_PROP_REQUEST = "request";
+    protected static final String MSG_PROP_REQUESTS = "requests";
     protected static final String MSG_PROP_OBJECT = "object";
+    protected static final String MSG_PROP_CREDIT = "credit";
+    protected static final String MSG_PROP_STREAM = "stream";
+    protected static final String MSG_PROP_ENCODING = "encoding";
+    protected static final String MSG_PROP_SERIALIZER = "serializer";
+    protected static final String MSG_PROP_PEER = "peer";
+    protected static final String MSG_PROP_DESCRIPTOR_ACKS = "descriptors";
 
     public static final JMSRemoteSystem INSTANCE = createJMSRemoteSystem();
 
@@ -81,14 +136,526 @@ public abstract class JMSRemoteSystem {
     protected final AtomicLong requestCounter = new AtomicLong(0);
     protected final AtomicBoolean running = new AtomicBoolean(true);
 
-    protected JMSTemplate sendTemplate = new JMSTemplate(this);
     protected JMSTemplate receiveTemplate = new JMSTemplate(this);
 
-    protected ExecutorService senderThread;
-    protected ExecutorService dispatchThreads;
+    protected int senderLaneCount = SENDER_LANES;
+    protected volatile SenderLane[] senderLanes;
+
+    protected int onewayBatchSize = ONEWAY_BATCH_SIZE;
+    protected long onewayBatchDelay = ONEWAY_BATCH_DELAY;
+    protected volatile Coalescer<Object, RequestExchange> onewayBatcher;
+
+    protected final Metrics metrics = new Metrics();
+    protected int compressionThreshold = COMPRESSION_THRESHOLD;
+    protected int compressionLevel = COMPRESSION_LEVEL;
+    protected final ConcurrentHashMap<String, Serializer> serializers = createSerializers();
+    protected volatile boolean binaryEnvelope = BINARY_ENVELOPE;
+    protected final ClassTables classTables = new ClassTables(metrics);
+    protected volatile PayloadCodec codec = new PayloadCodec(serializers, getRegisteredSerializer(SERIALIZER), compressionThreshold, compressionLevel, classTables, SHARE_CLASS_DESCRIPTORS, metrics);
+    protected final ConcurrentHashMap<Method, ResultCache> resultCaches = new ConcurrentHashMap<Method, ResultCache>();
+    protected final ConcurrentHashMap<InvocationKey, RequestExchange> inflight = new ConcurrentHashMap<InvocationKey, RequestExchange>();
+
+    protected int requestWindow = REQUEST_WINDOW;
+    protected RequestWindowStrategy requestWindowStrategy = REQUEST_WINDOW_STRATEGY;
+    protected int requestWindowQueue = REQUEST_WINDOW_QUEUE;
+    protected final ConcurrentHashMap<Destination, RequestWindow> requestWindows = new ConcurrentHashMap<Destination, RequestWindow>();
+
+    protected int onewayCredits = ONEWAY_CREDITS;
+    protected boolean onewayCreditDrop = ONEWAY_CREDIT_DROP;
+    protected long onewayCreditResync = ONEWAY_CREDIT_RESYNC;
+    protected final ConcurrentHashMap<Object, CreditWindow> creditWindows = new ConcurrentHashMap<Object, CreditWindow>();
+    protected final ConcurrentHashMap<List<Object>, AtomicInteger> pendingCredits = new ConcurrentHashMap<List<Object>, AtomicInteger>();
+    protected final ConcurrentHashMap<Long, SerialExecutor> onewayBatchExecutors = new ConcurrentHashMap<Long, SerialExecutor>();
+
+    protected volatile RetryPolicy retryPolicy;
+    protected volatile LocalCallMode localCallMode = LOCAL_CALL_MODE;
+
+    protected double circuitBreakerRatio = CIRCUIT_BREAKER_RATIO;
+    protected int circuitBreakerWindow = CIRCUIT_BREAKER_WINDOW;
+    protected long circuitBreakerOpenTime = CIRCUIT_BREAKER_OPEN_TIME;
+    protected int circuitBreakerHalfOpenCalls = CIRCUIT_BREAKER_HALF_OPEN_CALLS;
+    protected final ConcurrentHashMap<Destination, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<Destination, CircuitBreaker>();
+
+    protected volatile int streamChunkSize = STREAM_CHUNK_SIZE;
+    protected volatile int streamPrefetch = STREAM_PREFETCH;
+    protected volatile long streamIdleTimeout = STREAM_IDLE_TIMEOUT;
+    protected volatile int streamBlockSize = STREAM_BLOCK_SIZE;
+    protected volatile int streamBytesThreshold = STREAM_BYTES_THRESHOLD;
+    protected final AtomicLong streamCounter = new AtomicLong(0);
+    protected final ConcurrentHashMap<Long, StreamProducer> streamProducers = new ConcurrentHashMap<Long, StreamProducer>();
+    protected final ConcurrentHashMap<Long, StreamConsumer> streamConsumers = new ConcurrentHashMap<Long, StreamConsumer>();
+
+    protected int responseBatchSize = RESPONSE_BATCH_SIZE;
+    protected long responseBatchDelay = RESPONSE_BATCH_DELAY;
+    protected volatile Coalescer<Destination, PendingResponse> responseBatcher;
+
+    protected volatile boolean directSend = DIRECT_SEND;
+    protected volatile boolean asyncReceive = ASYNC_RECEIVE;
+    protected MessageListener receiveListener;
+    protected JMSTemplate directConnection;
+    protected volatile ThreadLocal<JMSTemplate> directTemplates = new ThreadLocal<JMSTemplate>();
+    protected final ConcurrentLinkedQueue<JMSTemplate> allDirectTemplates = new ConcurrentLinkedQueue<JMSTemplate>();
+    protected volatile ExecutorService dispatchThreads;
     protected Thread receiveThread;
+    protected TimerWheel timer;
     protected String systemId;
 
+    /**
+     * Sets the number of sender threads, each of which uses its own JMS
+     * session. Requests sent via the same proxy always use the same sender
+     * so they stay ordered. Takes effect the next time the senders are
+     * created, i.e. after a {@link #reset()}.
+     * 
+     * @param count
+     *            The number of sender lanes.
+     */
+    public void setSenderLaneCount(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        this.senderLaneCount = count;
+    }
+
+    public int getSenderLaneCount() {
+        return senderLaneCount;
+    }
+
+    /**
+     * Enables coalescing one way calls made to the same object into batch
+     * messages. A batch is sent once it holds <code>size</code> calls or
+     * <code>delay</code> milliseconds after its first call, whichever comes
+     * first. Batched one way calls return before they get sent. Takes effect
+     * after a {@link #reset()}.
+     * 
+     * @param size
+     *            The maximum number of calls per batch, 1 disables batching.
+     * @param delay
+     *            The maximum time a call waits for the batch to fill up.
+     */
+    public void setOnewayBatching(int size, long delay) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        this.onewayBatchSize = size;
+        this.onewayBatchDelay = delay;
+    }
+
+    public int getOnewayBatchSize() {
+        return onewayBatchSize;
+    }
+
+    public long getOnewayBatchDelay() {
+        return onewayBatchDelay;
+    }
+
+    /**
+     * Enables coalescing the responses going back to the same reply
+     * destination into a single message. A batch gets sent once it holds
+     * size responses or when its oldest response has waited delay
+     * milliseconds, so it trades a little latency for far fewer messages when
+     * many requests of a client are served at once. Takes effect after a
+     * {@link #reset()}.
+     * 
+     * @param size
+     *            The maximum number of responses per batch, 1 disables
+     *            batching.
+     * @param delay
+     *            The maximum time a response waits for the batch to fill up.
+     */
+    public void setResponseBatching(int size, long delay) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        this.responseBatchSize = size;
+        this.responseBatchDelay = delay;
+    }
+
+    public int getResponseBatchSize() {
+        return responseBatchSize;
+    }
+
+    public long getResponseBatchDelay() {
+        return responseBatchDelay;
+    }
+
+    /**
+     * Limits the number of requests a client can have outstanding toward a
+     * single destination. Takes effect after a {@link #reset()}.
+     * 
+     * @param size
+     *            The maximum number of outstanding requests, 0 for no limit.
+     * @param strategy
+     *            What to do with requests exceeding the window.
+     * @param queueSize
+     *            The maximum number of requests queued with the
+     *            {@link RequestWindowStrategy#QUEUE} strategy.
+     */
+    public void setRequestWindow(int size, RequestWindowStrategy strategy, int queueSize) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        this.requestWindow = size;
+        this.requestWindowStrategy = strategy;
+        this.requestWindowQueue = queueSize;
+    }
+
+    public int getRequestWindow() {
+        return requestWindow;
+    }
+
+    public RequestWindowStrategy getRequestWindowStrategy() {
+        return requestWindowStrategy;
+    }
+
+    public int getRequestWindowQueue() {
+        return requestWindowQueue;
+    }
+
+    /**
+     * Enables flow control of one way calls made to objects bound to queues.
+     * A client may have at most credits one way calls to an object which have
+     * not been executed yet; the remote system grants credits back as it
+     * executes them. Calls to objects bound to topics are not flow
+     * controlled. Takes effect after a {@link #reset()}.
+     * 
+     * @param credits
+     *            The size of the credit window, 0 disables flow control.
+     * @param drop
+     *            true to silently drop the calls made without credits left,
+     *            false to block the caller until credits get granted (for at
+     *            most the request timeout, see also
+     *            {@link #setOnewayCreditResync(long)}).
+     */
+    public void setOnewayFlowControl(int credits, boolean drop) {
+        if (credits < 0) {
+            throw new IllegalArgumentException("credits must not be negative");
+        }
+        this.onewayCredits = credits;
+        this.onewayCreditDrop = drop;
+    }
+
+    public int getOnewayCredits() {
+        return onewayCredits;
+    }
+
+    public boolean isOnewayCreditDrop() {
+        return onewayCreditDrop;
+    }
+
+    /**
+     * Sets how long a client goes without one way credits before it assumes
+     * the grants got lost, e.g. because the remote system was reset, and
+     * refills its credit window. Takes effect after a {@link #reset()}.
+     * 
+     * @param resync
+     *            In milliseconds, 0 to wait for the grants forever.
+     */
+    public void setOnewayCreditResync(long resync) {
+        if (resync < 0) {
+            throw new IllegalArgumentException("resync must not be negative");
+        }
+        this.onewayCreditResync = resync;
+    }
+
+    public long getOnewayCreditResync() {
+        return onewayCreditResync;
+    }
+
+    /**
+     * Sets the policy applied when sending a request, response or control
+     * message fails. Defaults to an instance of the RETRY_POLICY_CLASS system
+     * property, which defaults to an {@link ExponentialBackoffRetryPolicy}
+     * that retries forever.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        if (retryPolicy == null) {
+            throw new IllegalArgumentException("retryPolicy must not be null");
+        }
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            policy = createRetryPolicy();
+            retryPolicy = policy;
+        }
+        return policy;
+    }
+
+    /**
+     * Enables a circuit breaker per destination, which makes requests fail
+     * right away with a {@link CircuitOpenException} once too many of the
+     * recent requests sent to the destination timed out or could not be
+     * sent. Takes effect after a {@link #reset()}.
+     * 
+     * @param failureRatio
+     *            The ratio of failed requests, between 0 and 1, which opens
+     *            the breaker. 0 disables the circuit breakers.
+     * @param window
+     *            The number of most recent requests the ratio is computed
+     *            over.
+     * @param openTime
+     *            How long in milliseconds the breaker stays open before
+     *            letting probe requests through.
+     * @param halfOpenCalls
+     *            The number of probe requests which have to succeed to close
+     *            the breaker again.
+     */
+    public void setCircuitBreaker(double failureRatio, int window, long openTime, int halfOpenCalls) {
+        if (failureRatio < 0 || failureRatio > 1) {
+            throw new IllegalArgumentException("failureRatio must be between 0 and 1");
+        }
+        if (window < 1 || halfOpenCalls < 1) {
+            throw new IllegalArgumentException("window and halfOpenCalls must be at least 1");
+        }
+        this.circuitBreakerRatio = failureRatio;
+        this.circuitBreakerWindow = window;
+        this.circuitBreakerOpenTime = openTime;
+        this.circuitBreakerHalfOpenCalls = halfOpenCalls;
+    }
+
+    public double getCircuitBreakerRatio() {
+        return circuitBreakerRatio;
+    }
+
+    public int getCircuitBreakerWindow() {
+        return circuitBreakerWindow;
+    }
+
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    public int getCircuitBreakerHalfOpenCalls() {
+        return circuitBreakerHalfOpenCalls;
+    }
+
+    /**
+     * Sets how calls to objects exported by this system are carried out when
+     * they are made through a proxy in the same JVM. Takes effect right away.
+     * Calls to objects exported to an explicit destination always go through
+     * the broker, since other systems may consume from it too.
+     */
+    public void setLocalCallMode(LocalCallMode localCallMode) {
+        if (localCallMode == null) {
+            throw new IllegalArgumentException("localCallMode must not be null");
+        }
+        this.localCallMode = localCallMode;
+    }
+
+    public LocalCallMode getLocalCallMode() {
+        return localCallMode;
+    }
+
+    /**
+     * Enables compressing the requests and responses whose serialized size
+     * is above a threshold. The compressed messages are flagged so that the
+     * receiving systems decode them whatever their own settings are. Takes
+     * effect right away.
+     * 
+     * @param threshold
+     *            The size in bytes above which payloads get compressed, 0 to
+     *            disable compression.
+     * @param level
+     *            The {@link Deflater} compression level, from 1 (fastest) to 9
+     *            (best compression).
+     */
+    public void setCompression(int threshold, int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.compressionThreshold = threshold;
+        this.compressionLevel = level;
+        this.codec = new PayloadCodec(serializers, codec.getSerializer(), threshold, level, classTables, codec.isSharingClassDescriptors(), metrics);
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Registers a serializer, so that the messages encoded with it can be
+     * decoded and it can be selected with {@link #setSerializer(String)}. The
+     * Java serialization and a compact binary serializer are registered out
+     * of the box, as well as the classes listed in the SERIALIZER_CLASSES
+     * system property.
+     */
+    public void registerSerializer(Serializer serializer) {
+        serializers.put(serializer.getName(), serializer);
+    }
+
+    /**
+     * Selects the registered serializer used to encode the requests. The
+     * responses are encoded with the serializer of their request, so the
+     * remote systems only have to know the serializers their clients use.
+     * Takes effect right away.
+     * 
+     * @param name
+     *            The serializer name, "java" or "compact" unless others have
+     *            been registered.
+     */
+    public void setSerializer(String name) {
+        Serializer serializer = getRegisteredSerializer(name);
+        this.codec = new PayloadCodec(serializers, serializer, compressionThreshold, compressionLevel, classTables, codec.isSharingClassDescriptors(), metrics);
+    }
+
+    public String getSerializer() {
+        return codec.getSerializer().getName();
+    }
+
+    /**
+     * Enables sharing the Java serialization class descriptors with each
+     * remote system: once a system has acknowledged the descriptor of a
+     * class, the following requests and responses sent to it refer to the
+     * descriptor by an integer handle instead of repeating it, which makes
+     * small calls several times smaller. It only applies to the messages sent
+     * to the system queues with the "java" serializer. The responses to
+     * requests using shared descriptors use them too. Takes effect right
+     * away.
+     */
+    public void setShareClassDescriptors(boolean shareClassDescriptors) {
+        this.codec = new PayloadCodec(serializers, codec.getSerializer(), compressionThreshold, compressionLevel, classTables, shareClassDescriptors, metrics);
+    }
+
+    public boolean isShareClassDescriptors() {
+        return codec.isSharingClassDescriptors();
+    }
+
+    private Serializer getRegisteredSerializer(String name) {
+        Serializer serializer = serializers.get(name);
+        if (serializer == null) {
+            throw new IllegalArgumentException("No serializer is registered as: " + name);
+        }
+        return serializer;
+    }
+
+    /**
+     * Enables sending the requests in the binary envelope format: a bytes
+     * message whose fixed layout header carries the object id, request id,
+     * method hash and deadline instead of JMS properties, followed by the
+     * encoded arguments. Receivers route the requests, and drop the ones past
+     * their deadline, from the header alone, and answer them in the same
+     * format. The one way requests of a flow controlled proxy and the batches
+     * keep using the property based format. Takes effect right away.
+     */
+    public void setBinaryEnvelope(boolean binaryEnvelope) {
+        this.binaryEnvelope = binaryEnvelope;
+    }
+
+    public boolean isBinaryEnvelope() {
+        return binaryEnvelope;
+    }
+
+    PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Configures how the results of methods returning an {@link Iterator} or
+     * an {@link Iterable} are streamed. Takes effect for the streams opened
+     * afterwards.
+     * 
+     * @param chunkSize
+     *            The number of elements sent per message by the server.
+     * @param prefetch
+     *            The number of chunks a client keeps buffered or on their way.
+     * @param idleTimeout
+     *            How long in milliseconds the server keeps a stream the client
+     *            does not ask chunks for, 0 to keep it forever.
+     */
+    public void setStreaming(int chunkSize, int prefetch, long idleTimeout) {
+        if (chunkSize < 1 || prefetch < 1) {
+            throw new IllegalArgumentException("chunkSize and prefetch must be at least 1");
+        }
+        this.streamChunkSize = chunkSize;
+        this.streamPrefetch = prefetch;
+        this.streamIdleTimeout = idleTimeout;
+    }
+
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    public int getStreamPrefetch() {
+        return streamPrefetch;
+    }
+
+    public long getStreamIdleTimeout() {
+        return streamIdleTimeout;
+    }
+
+    /**
+     * Configures how {@link InputStream}s and large byte arrays passed as
+     * arguments or results are split in messages. Takes effect for the
+     * streams opened afterwards.
+     * 
+     * @param blockSize
+     *            The number of bytes sent per message.
+     * @param bytesThreshold
+     *            The size above which byte arrays are streamed, 0 to never
+     *            stream them.
+     */
+    public void setBinaryStreaming(int blockSize, int bytesThreshold) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1");
+        }
+        this.streamBlockSize = blockSize;
+        this.streamBytesThreshold = bytesThreshold;
+    }
+
+    public int getStreamBlockSize() {
+        return streamBlockSize;
+    }
+
+    public int getStreamBytesThreshold() {
+        return streamBytesThreshold;
+    }
+
+    /**
+     * Enables sending requests and responses directly from the invoking (or
+     * dispatching) thread instead of handing them to a sender lane. Every
+     * thread then uses a JMS session of its own. These sessions share one
+     * connection. The ones of dispatch threads are closed when the pool
+     * retires the thread, the ones of application threads only on
+     * {@link #reset()}, so this mode is meant for applications calling from
+     * a bounded set of threads.
+     * 
+     * @param directSend
+     *            true to send in the calling thread.
+     */
+    public void setDirectSend(boolean directSend) {
+        this.directSend = directSend;
+    }
+
+    public boolean isDirectSend() {
+        return directSend;
+    }
+
+    /**
+     * Enables having the JMS provider push the messages of the system queue,
+     * and of the explicit destinations, to a {@link MessageListener} instead
+     * of polling them from a receive thread. The messages are handed to the
+     * dispatch threads from the provider's delivery thread, and stopping only
+     * waits for the message being handed over. Takes effect the next time the
+     * receiver is started, i.e. after a {@link #reset()}, and for the objects
+     * exported to explicit destinations afterwards.
+     * 
+     * @param asyncReceive
+     *            true to use a message listener.
+     */
+    public void setAsyncReceive(boolean asyncReceive) {
+        this.asyncReceive = asyncReceive;
+    }
+
+    public boolean isAsyncReceive() {
+        return asyncReceive;
+    }
+
     public void setUserClassLoader(ClassLoader userClassLoader) {
         this.userClassLoader = userClassLoader;
     }
@@ -117,13 +684,29 @@ public abstract class JMSRemoteSystem {
 
     public void reset() throws InterruptedException {
         running.set(false);
+        // Closed before taking the lock, the message listener may need it
+        // to get the dispatch threads while the close waits for it.
+        receiveTemplate.close();
         synchronized (this) {
-            sendTemplate.close();
-            receiveTemplate.close();
 
-            if (senderThread != null) {
-                senderThread.shutdown();
-                senderThread.awaitTermination(30, TimeUnit.SECONDS);
+            // Taken out of the windows first so that they are not handed to
+            // the lanes being closed.
+            ArrayList<RequestExchange> pending = new ArrayList<RequestExchange>();
+            for (RequestWindow window : requestWindows.values()) {
+                pending.addAll(window.close());
+            }
+
+            if (senderLanes != null) {
+                for (SenderLane lane : senderLanes) {
+                    lane.close();
+                }
+            }
+            directTemplates = new ThreadLocal<JMSTemplate>();
+            for (JMSTemplate template; (template = allDirectTemplates.poll()) != null;) {
+                template.close();
+            }
+            if (directConnection != null) {
+                directConnection.close();
             }
             if (receiveThread != null) {
                 receiveThread.join(30000);
@@ -132,11 +715,38 @@ public abstract class JMSRemoteSystem {
                 dispatchThreads.shutdown();
                 dispatchThreads.awaitTermination(30, TimeUnit.SECONDS);
             }
+            // Nothing will answer or time out the pending requests anymore.
+            pending.addAll(requests.values());
+            pending.addAll(inflight.values());
+            for (RequestExchange exchange : pending) {
+                exchange.cancel();
+                exchange.setResponse(new Response(exchange.getRequest().requestId, null, new RemoteException("RemoteSystem reset")));
+            }
+            requests.clear();
+
+            if (timer != null) {
+                timer.stop();
+            }
 
-            senderThread = null;
+            senderLanes = null;
+            onewayBatcher = null;
+            responseBatcher = null;
+            resultCaches.clear();
+            inflight.clear();
+            requestWindows.clear();
+            circuitBreakers.clear();
+            for (CreditWindow window : creditWindows.values()) {
+                window.close();
+            }
+            creditWindows.clear();
+            pendingCredits.clear();
+            directConnection = null;
             receiveThread = null;
+            receiveListener = null;
             dispatchThreads = null;
+            timer = null;
             systemId = null;
+            classTables.clear();
 
             for (Iterator<Skeleton> iterator = exportedSkeletonsById.values().iterator(); iterator.hasNext();) {
                 Skeleton entry = iterator.next();
@@ -146,18 +756,21 @@ public abstract class JMSRemoteSystem {
                 iterator.remove();
             }
 
-            for (Iterator<RequestExchange> iterator = requests.values().iterator(); iterator.hasNext();) {
-                RequestExchange entry = iterator.next();
-                entry.cancel();
-                iterator.remove();
+            for (StreamProducer stream : streamProducers.values()) {
+                stream.close();
+            }
+            streamProducers.clear();
+            for (StreamConsumer stream : streamConsumers.values()) {
+                stream.fail(new RemoteException("RemoteSystem reset"));
             }
+            streamConsumers.clear();
 
             exportedRemoteRefs.clear();
             exportedSkeletonsById.clear();
+            onewayBatchExecutors.clear();
             objectCounter.set(0);
             requestCounter.set(0);
 
-            sendTemplate = new JMSTemplate(this);
             receiveTemplate = new JMSTemplate(this);
         }
         running.set(true);
@@ -166,6 +779,12 @@ public abstract class JMSRemoteSystem {
     synchronized public String getSystemId() {
         if (systemId == null) {
             systemId = createJVMID();
+            try {
+                // The peers know this system by the name of its system queue.
+                classTables.setLocalId(ClassTables.peerOf(createQueue(systemId)));
+            } catch (JMSException e) {
+                // the class descriptors will not be shared then..
+            }
         }
         return systemId;
     }
@@ -239,6 +858,7 @@ public abstract class JMSRemoteSystem {
             throw new NoSuchObjectException("Object not exported: " + obj);
         }
         exportedRemoteRefs.remove(new RemoteIdentity(skeleton.target));
+        onewayBatchExecutors.remove(ref.getObjectId());
         if (skeleton instanceof ExplictDestinationSkeleton) {
             ((ExplictDestinationSkeleton) skeleton).stop();
         }
@@ -246,17 +866,30 @@ public abstract class JMSRemoteSystem {
         return true;
     }
 
-    public Object invoke(JMSRemoteRef jmsRemoteRef, Method method, Object[] params) throws Exception {
-
-        boolean oneway = JMSRemoteRef.isOneWay(method);
+    public Object invoke(JMSRemoteRef jmsRemoteRef, MethodInfo method, Object[] params) throws Exception {
+        if (method.cacheable != null) {
+            ResultCache cache = getResultCache(method);
+            InvocationKey key = new InvocationKey(jmsRemoteRef.getTargetKey(), method.signature, params);
+            Object rc = cache.get(key);
+            if (rc == ResultCache.MISS) {
+                rc = send(jmsRemoteRef, method, params);
+                cache.put(key, rc);
+            }
+            return rc;
+        }
+        return send(jmsRemoteRef, method, params);
+    }
 
-        long timeout = 0;
-        if (!oneway) {
-            timeout = REQUEST_TIMEOUT;
-            if (method.isAnnotationPresent(Timeout.class)) {
-                timeout = method.getAnnotation(Timeout.class).value();
+    private Object send(JMSRemoteRef jmsRemoteRef, MethodInfo method, Object[] params) throws Exception {
+        if (localCallMode != LocalCallMode.BROKER) {
+            Skeleton skeleton = getLocalSkeleton(jmsRemoteRef);
+            if (skeleton != null) {
+                return invokeLocal(skeleton, jmsRemoteRef, method, params);
             }
+        }
 
+        long timeout = method.timeout;
+        if (!method.oneway) {
             // Perhaps there is per inovocation timeout configured..
             Long nto = JMSRemoteObject.removeNextInvocationTimeout();
             if (nto != null) {
@@ -267,139 +900,1190 @@ public abstract class JMSRemoteSystem {
             kickReceiveThread();
         }
 
-        int deliveryMode = method.isAnnotationPresent(Persistent.class) ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
-        int priority = 4;
-        if (method.isAnnotationPresent(Priority.class)) {
-            priority = method.getAnnotation(Priority.class).value();
-        }
-
-        RequestExchange requestExchange = new RequestExchange(this, jmsRemoteRef, signature(method), params, oneway, timeout, deliveryMode, priority);
-        getSenderThread().execute(requestExchange);
-        try {
-            return requestExchange.getResult();
-        } catch (Exception e) {
-            throw e;
-        } catch (Throwable e) {
-            throw new RemoteException("Unexepected error", e);
+        if (method.idempotent) {
+            return sendIdempotent(jmsRemoteRef, method, params, timeout);
         }
-    }
 
-    private void receiveAndDispatch() throws Exception {
-        try {
-            Session session = receiveTemplate.getSession();
-            MessageConsumer consumer = receiveTemplate.getMessageConsumer();
-            Message msg = consumer.receive(500);
-            if (msg != null) {
-                if (MSG_TYPE_REQUEST.equals(msg.getJMSType())) {
-                    // Handle decoding the message in the dispatch thread.
-                    getDispatchThreads().execute(new DispatchTask(this, (ObjectMessage) msg, false));
-                } else if (MSG_TYPE_ONEWAY.equals(msg.getJMSType())) {
-                    // Handle decoding the message in the dispatch thread.
-                    getDispatchThreads().execute(new DispatchTask(this, (ObjectMessage) msg, true));
-                } else if (MSG_TYPE_RESPONSE.equals(msg.getJMSType())) {
-                    try {
-                        long request = msg.getLongProperty(MSG_PROP_REQUEST);
-                        RequestExchange target = requests.remove(request);
-                        if (target != null) {
-                            Response response = null;
-                            try {
-                                Thread.currentThread().setContextClassLoader(getUserClassLoader(target));
-                                response = (Response) ((ObjectMessage) msg).getObject();
-                                response.fromRemote = true;
-                            } catch (JMSException e) {
-                                target.setResponse(new Response(request, null, new UnmarshalException("Could not unmarshall response: " + e.getMessage(), e)));
-                            }
-                            target.setResponse(response);
-                        }
-                    } catch (JMSException e) {
-                        e.printStackTrace();
-                    }
+        params = openArgumentStreams(params, method.deliveryMode, method.priority);
+        RequestExchange requestExchange = new RequestExchange(this, jmsRemoteRef, method.methodHash, params, method.oneway, timeout, method.deliveryMode, method.priority);
+        if (method.oneway) {
+            CreditWindow credits = getCreditWindow(jmsRemoteRef);
+            if (credits != null) {
+                if (!credits.acquire(onewayCreditDrop, REQUEST_TIMEOUT)) {
+                    metrics.increment(Metrics.ONEWAY_DROPPED);
+                    return null;
                 }
+                requestExchange.setCredits(credits);
             }
-        } catch (TemplateClosedException tce) {
-            //TODO we should probably just eat this.
-            tce.printStackTrace();
-            throw tce;
-        } catch (Exception e) {
-            e.printStackTrace();
-            receiveTemplate.reset();
-            throw e;
         }
-    }
-
-    void sendResponse(final Message requestMessage, final Response response) {
-        getSenderThread().execute(new Runnable() {
-            public void run() {
-                ObjectMessage msg = null;
-                while (running.get()) {
-                    try {
-                        Session session = sendTemplate.getSession();
-                        MessageProducer producer = sendTemplate.getMessageProducer();
-                        if (msg == null) {
-                            try {
-                                msg = session.createObjectMessage(response);
-                            } catch (JMSException e) {
-                                msg = session.createObjectMessage(new Response(response.requestId, null, new MarshalException("Could not marshall response: " + e.getMessage(), e)));
-                            }
-                        }
-                        msg.setLongProperty(MSG_PROP_REQUEST, response.requestId);
-                        msg.setJMSType(MSG_TYPE_RESPONSE);
-                        producer.send(requestMessage.getJMSReplyTo(), msg, requestMessage.getJMSDeliveryMode(), requestMessage.getJMSPriority(), 0);
-                        return;
-                    } catch (TemplateClosedException tce) {
-                        //TODO we should probably just eat this.
-                        tce.printStackTrace();
-                        return;
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        sendTemplate.reset();
-                        // TODO: should we sleep??
-                        // lets loop to retry the send..
-                    }
+        if (method.oneway) {
+            try {
+                if (onewayBatchSize > 1) {
+                    getOnewayBatcher().add(jmsRemoteRef.getTargetKey(), requestExchange);
+                    return null;
                 }
+                send(jmsRemoteRef, requestExchange);
+            } catch (RuntimeException e) {
+                requestExchange.returnCredit();
+                throw e;
             }
-        });
+        } else {
+            start(jmsRemoteRef, requestExchange, timeout);
+        }
+        return getResult(method, requestExchange);
     }
 
-    ///////////////////////////////////////////////////////////////////
-    // Exetend to implement for a different JMS provider
-    ///////////////////////////////////////////////////////////////////
-    abstract protected ConnectionFactory createConnectionFactory();
-
-    abstract protected Destination createQueue(String queueId);
-
-    abstract protected Destination createTopic(String topicId);
-
-    ///////////////////////////////////////////////////////////////////
-    // Helper Methods...
-    ///////////////////////////////////////////////////////////////////
-
-    synchronized ExecutorService getDispatchThreads() {
-        if (dispatchThreads == null) {
-            dispatchThreads = Executors.newCachedThreadPool(threadFactory("RMI via JMS: service"));
-
+    /**
+     * @return the skeleton of the object if it is exported to this system's
+     *         queue.
+     */
+    private Skeleton getLocalSkeleton(JMSRemoteRef jmsRemoteRef) {
+        Skeleton skeleton = exportedSkeletonsById.get(jmsRemoteRef.getObjectId());
+        if (skeleton == null || skeleton instanceof ExplictDestinationSkeleton || !skeleton.ref.getDestination().equals(jmsRemoteRef.getDestination())) {
+            return null;
         }
-        return dispatchThreads;
+        return skeleton;
     }
 
-    synchronized ExecutorService getSenderThread() {
-        if (senderThread == null) {
-            senderThread = Executors.newSingleThreadExecutor(threadFactory("RMI via JMS: sender"));
+    /**
+     * Invokes an object exported by this system directly. Synchronous calls
+     * run in the calling thread, one way and asynchronous calls on the
+     * dispatch threads.
+     */
+    private Object invokeLocal(Skeleton skeleton, JMSRemoteRef jmsRemoteRef, MethodInfo method, Object[] params) throws Exception {
+        metrics.increment(Metrics.LOCAL_CALLS);
+        RequestExchange requestExchange = new RequestExchange(this, jmsRemoteRef, method.methodHash, params, method.oneway, 0, method.deliveryMode, method.priority);
+        LocalCall call = new LocalCall(skeleton, requestExchange, method.oneway, localCallMode == LocalCallMode.COPY);
+        if (method.oneway) {
+            getDispatchThreads().execute(call);
+            return null;
+        }
+        if (method.async) {
+            getDispatchThreads().execute(call);
+        } else {
+            call.run();
         }
-        return senderThread;
+        return getResult(method, requestExchange);
     }
 
-    synchronized Thread kickReceiveThread() throws TemplateClosedException {
-        if (receiveThread == null) {
+    /**
+     * Joins an identical call if one is in flight, otherwise sends the
+     * request and lets identical calls join it until it completes.
+     */
+    private Object sendIdempotent(JMSRemoteRef jmsRemoteRef, MethodInfo method, Object[] params, long timeout) throws Exception {
+        final InvocationKey key = new InvocationKey(jmsRemoteRef.getTargetKey(), method.signature, params);
+        while (true) {
+            RequestExchange existing = inflight.get(key);
+            if (existing != null && !existing.isDone()) {
+                metrics.increment(Metrics.COALESCED_CALLS);
+                return getJoinedResult(method, existing);
+            }
+
+            final RequestExchange requestExchange = new RequestExchange(this, jmsRemoteRef, method.methodHash, openArgumentStreams(params, method.deliveryMode, method.priority), false, timeout,
+                    method.deliveryMode, method.priority);
+            boolean added = existing == null ? inflight.putIfAbsent(key, requestExchange) == null : inflight.replace(key, existing, requestExchange);
+            if (added) {
+                requestExchange.addListener(new RemoteFuture.Listener<Object>() {
+                    public void onComplete(RemoteFuture<Object> future) {
+                        inflight.remove(key, requestExchange);
+                    }
+                });
+                try {
+                    start(jmsRemoteRef, requestExchange, timeout);
+                } catch (RemoteException e) {
+                    inflight.remove(key, requestExchange);
+                    // Fails the callers which joined it in the meantime.
+                    requestExchange.setResponse(new Response(requestExchange.getRequest().requestId, null, e));
+                    throw e;
+                }
+                return getJoinedResult(method, requestExchange);
+            }
+        }
+    }
+
+    /**
+     * Sends a request once the circuit breaker of its destination let it
+     * through and it got a slot of the request window, and starts its
+     * timeout.
+     */
+    private void start(JMSRemoteRef jmsRemoteRef, RequestExchange requestExchange, long timeout) throws RemoteException {
+        CircuitBreaker circuitBreaker = getCircuitBreaker(jmsRemoteRef);
+        int generation = 0;
+        if (circuitBreaker != null) {
+            generation = circuitBreaker.acquire();
+            requestExchange.setCircuitBreaker(circuitBreaker, generation);
+        }
+        RequestWindow window = getRequestWindow(jmsRemoteRef);
+        if (window == null) {
+            requestExchange.scheduleTimeout();
+            send(jmsRemoteRef, requestExchange);
+            return;
+        }
+        requestExchange.setWindow(window);
+        boolean sendNow;
+        long waitStart = System.nanoTime();
+        try {
+            sendNow = window.acquire(requestExchange, timeout);
+        } catch (RemoteException e) {
+            // Not sent: there is no slot to give back nor outcome to record.
+            requestExchange.setWindow(null);
+            if (circuitBreaker != null) {
+                requestExchange.setCircuitBreaker(null, 0);
+                circuitBreaker.cancel(generation);
+            }
+            throw e;
+        }
+        // The time spent blocked on the window counts toward the timeout.
+        requestExchange.scheduleTimeout(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart));
+        if (sendNow) {
+            send(jmsRemoteRef, requestExchange);
+        }
+    }
+
+    /**
+     * Sends a request which waited in a request window queue. This is called
+     * from the thread completing another request so it is always handed to a
+     * sender lane.
+     */
+    void sendQueued(RequestExchange requestExchange) {
+        requestExchange.sendVia(getSenderLane(requestExchange.getRemoteRef()));
+    }
+
+    /**
+     * @return the credit window of the object or null if one way calls to it
+     *         are not flow controlled.
+     */
+    CreditWindow getCreditWindow(JMSRemoteRef ref) throws RemoteException {
+        if (onewayCredits <= 0 || ref.getDestination() instanceof Topic) {
+            return null;
+        }
+        Object key = ref.getTargetKey();
+        CreditWindow window = creditWindows.get(key);
+        if (window == null) {
+            // Credits are granted to the receive thread.
+            try {
+                kickReceiveThread();
+            } catch (TemplateClosedException tce) {
+                throw new RemoteException("RemoteSystem reset", tce);
+            }
+            window = new CreditWindow(onewayCredits, onewayCreditResync, metrics);
+            CreditWindow existing = creditWindows.putIfAbsent(key, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Called once flow controlled one way requests have been executed. The
+     * credits are granted back to the sending system once half of its window
+     * is used up, so that it never runs dry while we have not sent them.
+     */
+    void grantCredits(Message requestMessage, int count) {
+        try {
+            if (!requestMessage.propertyExists(MSG_PROP_CREDIT)) {
+                return;
+            }
+            int window = requestMessage.getIntProperty(MSG_PROP_CREDIT);
+            final Destination replyTo = requestMessage.getJMSReplyTo();
+            final Destination destination = requestMessage.getJMSDestination();
+            final long oid = requestMessage.getLongProperty(MSG_PROP_OBJECT);
+
+            List<Object> key = Arrays.<Object> asList(replyTo, destination, oid);
+            AtomicInteger pending = pendingCredits.get(key);
+            if (pending == null) {
+                pending = new AtomicInteger();
+                AtomicInteger existing = pendingCredits.putIfAbsent(key, pending);
+                if (existing != null) {
+                    pending = existing;
+                }
+            }
+            pending.addAndGet(count);
+            int threshold = Math.max(1, window / 2);
+            while (true) {
+                final int credits = pending.get();
+                if (credits < threshold) {
+                    return;
+                }
+                if (pending.compareAndSet(credits, 0)) {
+                    final SenderLane lane = getSenderLane(oid);
+                    lane.execute(new Runnable() {
+                        public void run() {
+                            sendCredits(lane.template, replyTo, destination, oid, credits);
+                        }
+                    });
+                    return;
+                }
+            }
+        } catch (JMSException e) {
+            // The request message must not have been properly created..
+            e.printStackTrace();
+        }
+    }
+
+    private void sendCredits(JMSTemplate sendTemplate, Destination replyTo, Destination destination, long oid, int credits) {
+        Retry retry = null;
+        while (running.get()) {
+            try {
+                Message msg = sendTemplate.getSession().createMessage();
+                msg.setJMSType(MSG_TYPE_CREDIT);
+                msg.setLongProperty(MSG_PROP_OBJECT, oid);
+                msg.setIntProperty(MSG_PROP_CREDIT, credits);
+                // Tells the client which of the objects with that id the credits are for.
+                msg.setJMSReplyTo(destination);
+                sendTemplate.getMessageProducer().send(replyTo, msg, DeliveryMode.NON_PERSISTENT, 9, 0);
+                return;
+            } catch (TemplateClosedException tce) {
+                return;
+            } catch (Exception e) {
+                if (retry == null) {
+                    retry = new Retry(this);
+                }
+                if (!retry.retry(sendTemplate, e)) {
+                    // the client will block or drop its calls..
+                    return;
+                }
+            }
+        }
+    }
+
+    CircuitBreaker getCircuitBreaker(JMSRemoteRef ref) {
+        if (circuitBreakerRatio <= 0) {
+            return null;
+        }
+        Destination destination = ref.getDestination();
+        CircuitBreaker breaker = circuitBreakers.get(destination);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(this, destination, circuitBreakerRatio, circuitBreakerWindow, circuitBreakerOpenTime, circuitBreakerHalfOpenCalls);
+            CircuitBreaker existing = circuitBreakers.putIfAbsent(destination, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    RequestWindow getRequestWindow(JMSRemoteRef ref) {
+        if (requestWindow <= 0) {
+            return null;
+        }
+        Destination destination = ref.getDestination();
+        RequestWindow window = requestWindows.get(destination);
+        if (window == null) {
+            window = new RequestWindow(this, destination, requestWindow, requestWindowStrategy, requestWindowQueue);
+            RequestWindow existing = requestWindows.putIfAbsent(destination, window);
+            if (existing != null) {
+                window = existing;
+            }
+        }
+        return window;
+    }
+
+    private void send(JMSRemoteRef jmsRemoteRef, RequestExchange requestExchange) {
+        if (directSend) {
+            requestExchange.sendDirect(getDirectTemplate());
+        } else {
+            requestExchange.sendVia(getSenderLane(jmsRemoteRef));
+        }
+    }
+
+    /**
+     * Like {@link #getResult(MethodInfo, RequestExchange)} for a call which
+     * other callers may join: asynchronous callers get a future of their own
+     * so that canceling it does not fail the others.
+     */
+    private Object getJoinedResult(MethodInfo method, RequestExchange requestExchange) throws Exception {
+        if (method.async) {
+            return JoinedFuture.join(this, requestExchange);
+        }
+        return getResult(method, requestExchange);
+    }
+
+    private Object getResult(MethodInfo method, RequestExchange requestExchange) throws Exception {
+        if (method.async) {
+            // The receive thread completes the future, get() decodes the response.
+            return requestExchange;
+        }
+        try {
+            return requestExchange.getResult();
+        } catch (Exception e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RemoteException("Unexepected error", e);
+        }
+    }
+
+    /**
+     * Sends the recorded calls of a batch in a single message. Their
+     * responses come back in a single message too.
+     */
+    void sendBatch(JMSRemoteRef jmsRemoteRef, ArrayList<RequestExchange> exchanges, boolean parallel) throws RemoteException {
+        try {
+            kickReceiveThread();
+        } catch (TemplateClosedException tce) {
+            throw new RemoteException("RemoteSystem reset", tce);
+        }
+        for (RequestExchange exchange : exchanges) {
+            exchange.scheduleTimeout();
+        }
+        SenderLane lane = getSenderLane(jmsRemoteRef);
+        lane.execute(new BatchSend(this, lane, exchanges, false, parallel));
+    }
+
+    private void receiveAndDispatch() throws Exception {
+        try {
+            Session session = receiveTemplate.getSession();
+            MessageConsumer consumer = receiveTemplate.getMessageConsumer();
+            Message msg = consumer.receive(500);
+            if (msg != null) {
+                dispatch(msg);
+            }
+        } catch (TemplateClosedException tce) {
+            //TODO we should probably just eat this.
+            tce.printStackTrace();
+            throw tce;
+        } catch (Exception e) {
+            e.printStackTrace();
+            receiveTemplate.reset();
+            throw e;
+        }
+    }
+
+    /**
+     * Routes a message received on the system queue, from the receive thread
+     * or the provider's delivery thread.
+     */
+    private void dispatch(Message msg) throws JMSException {
+        if (Envelope.isEnvelope(msg)) {
+            receiveEnvelope(msg);
+        } else if (MSG_TYPE_REQUEST.equals(msg.getJMSType()) || MSG_TYPE_REQUEST_BATCH.equals(msg.getJMSType())) {
+            // Handle decoding the message in the dispatch thread.
+            getDispatchThreads().execute(new DispatchTask(this, msg, false));
+        } else if (MSG_TYPE_ONEWAY.equals(msg.getJMSType())) {
+            // Handle decoding the message in the dispatch thread.
+            getDispatchThreads().execute(new DispatchTask(this, msg, true));
+        } else if (MSG_TYPE_ONEWAY_BATCH.equals(msg.getJMSType())) {
+            // One batch at a time per object, so that the calls stay in order.
+            getOnewayBatchExecutor(msg.getLongProperty(MSG_PROP_OBJECT)).execute(new DispatchTask(this, msg, true));
+        } else if (MSG_TYPE_RESPONSE.equals(msg.getJMSType())) {
+            try {
+                RequestExchange target = requests.remove(msg.getLongProperty(MSG_PROP_REQUEST));
+                if (target != null) {
+                    // Decoded by the thread asking for the result.
+                    target.setResponse(msg, null);
+                }
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
+        } else if (MSG_TYPE_CREDIT.equals(msg.getJMSType())) {
+            try {
+                Object key = JMSRemoteRef.targetKey(msg.getJMSReplyTo(), msg.getLongProperty(MSG_PROP_OBJECT));
+                CreditWindow window = creditWindows.get(key);
+                if (window != null) {
+                    window.grant(msg.getIntProperty(MSG_PROP_CREDIT));
+                }
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
+        } else if (MSG_TYPE_STREAM_CHUNK.equals(msg.getJMSType())) {
+            StreamConsumer stream = null;
+            try {
+                stream = streamConsumers.get(msg.getLongProperty(MSG_PROP_REQUEST));
+                if (stream != null) {
+                    Thread.currentThread().setContextClassLoader(stream.getClassLoader());
+                    Object body = codec.decode(msg);
+                    if (body instanceof Response) {
+                        // The chunk could not be marshalled.
+                        stream.fail(((Response) body).exception);
+                    } else {
+                        stream.onChunk((StreamChunk) body);
+                    }
+                }
+            } catch (JMSException e) {
+                if (stream != null) {
+                    stream.fail(new UnmarshalException("Could not unmarshall stream chunk: " + e.getMessage(), e));
+                } else {
+                    e.printStackTrace();
+                }
+            }
+        } else if (MSG_TYPE_STREAM_DEMAND.equals(msg.getJMSType())) {
+            try {
+                long streamId = msg.getLongProperty(MSG_PROP_STREAM);
+                final StreamProducer stream = streamProducers.get(streamId);
+                final Destination replyTo = msg.getJMSReplyTo();
+                final long key = msg.getLongProperty(MSG_PROP_REQUEST);
+                final int chunks = msg.getIntProperty(MSG_PROP_CREDIT);
+                if (stream != null) {
+                    getDispatchThreads().execute(new Runnable() {
+                        public void run() {
+                            stream.demand(replyTo, key, chunks);
+                        }
+                    });
+                } else if (chunks > 0 && replyTo != null) {
+                    // Closed while idle, or by a reset: the consumer must not wait for it.
+                    StreamChunk failed = new StreamChunk(streamId, null, StreamSource.ITERATOR, new Object[0], true, new NoSuchObjectException("Unknown stream: " + streamId));
+                    sendStreamChunk(replyTo, DeliveryMode.NON_PERSISTENT, msg.getJMSPriority(), failed, key);
+                }
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
+        } else if (MSG_TYPE_RESPONSE_BATCH.equals(msg.getJMSType())) {
+            // The request ids are in the body, so the batch is
+            // decoded in the dispatch thread.
+            final Message batchMessage = msg;
+            getDispatchThreads().execute(new Runnable() {
+                public void run() {
+                    receiveResponseBatch(batchMessage);
+                }
+            });
+        }
+    }
+
+    private void receiveEnvelope(Message msg) {
+        try {
+            Envelope envelope = Envelope.read(msg);
+            switch (envelope.type) {
+            case Envelope.TYPE_REQUEST:
+            case Envelope.TYPE_ONEWAY:
+                if (envelope.isExpired(System.currentTimeMillis())) {
+                    // The caller has given up on it already.
+                    metrics.increment(Metrics.REQUESTS_EXPIRED);
+                } else {
+                    // Handle decoding the message in the dispatch thread.
+                    getDispatchThreads().execute(new DispatchTask(this, msg, envelope));
+                }
+                break;
+            case Envelope.TYPE_RESPONSE:
+                RequestExchange target = requests.remove(envelope.requestId);
+                if (target != null) {
+                    // Decoded by the thread asking for the result.
+                    target.setResponse(msg, envelope);
+                }
+                break;
+            default:
+                throw new JMSException("Unknown envelope type: " + envelope.type);
+            }
+        } catch (JMSException e) {
+            // Not one of ours, or sent by an incompatible version.
+            e.printStackTrace();
+        }
+    }
+
+    private void receiveResponseBatch(Message msg) {
+        try {
+            Thread.currentThread().setContextClassLoader(getUserClassLoader(this));
+            ResponseBatch batch = (ResponseBatch) codec.decode(msg);
+            for (Response response : batch.responses) {
+                RequestExchange target = requests.remove(response.requestId);
+                if (target != null) {
+                    response.fromRemote = true;
+                    target.setResponse(openStream(target, response));
+                }
+            }
+        } catch (JMSException e) {
+            e.printStackTrace();
+            try {
+                long[] ids = getRequestIds(msg);
+                if (ids != null) {
+                    for (long id : ids) {
+                        RequestExchange target = requests.remove(id);
+                        if (target != null) {
+                            target.setResponse(new Response(id, null, new UnmarshalException("Could not unmarshall response batch: " + e.getMessage(), e)));
+                        }
+                    }
+                }
+            } catch (JMSException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Lists the request ids of a batch in the {@link #MSG_PROP_REQUESTS}
+     * property, so that the batch can be answered, or failed, without being
+     * decoded.
+     */
+    static void setRequestIds(Message msg, long[] ids) throws JMSException {
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        msg.setStringProperty(MSG_PROP_REQUESTS, sb.toString());
+    }
+
+    /**
+     * @return the request ids listed by a batch message, null if it has none.
+     */
+    static long[] getRequestIds(Message msg) throws JMSException {
+        String ids = msg.getStringProperty(MSG_PROP_REQUESTS);
+        if (ids == null) {
+            return null;
+        }
+        String[] parts = ids.split(",");
+        long[] rc = new long[parts.length];
+        try {
+            for (int i = 0; i < rc.length; i++) {
+                rc[i] = Long.parseLong(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return rc;
+    }
+
+    /**
+     * Answers a request which could not be invoked. All the requests of a
+     * batch get the exception, when the batch lists their ids.
+     */
+    void sendFailure(Message requestMessage, long requestId, Throwable cause) throws JMSException {
+        long[] ids = MSG_TYPE_REQUEST_BATCH.equals(requestMessage.getJMSType()) ? getRequestIds(requestMessage) : null;
+        if (ids == null) {
+            sendResponse(requestMessage, new Response(requestId, null, cause));
+            return;
+        }
+        Response[] responses = new Response[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            responses[i] = new Response(ids[i], null, cause);
+        }
+        sendResponse(requestMessage, new ResponseBatch(responses));
+    }
+
+    /**
+     * Decodes the response message of an exchange. It runs in the first
+     * thread asking for the result, with the context class loader of the
+     * exchange for the time of the call.
+     */
+    Response decodeResponse(RequestExchange target, Message msg, Envelope envelope) {
+        long requestId = target.getRequest().requestId;
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        try {
+            thread.setContextClassLoader(getUserClassLoader(target));
+            Response response;
+            if (envelope == null) {
+                response = (Response) codec.decode(msg);
+            } else if (envelope.hasFlag(Envelope.FLAG_EXCEPTION)) {
+                response = new Response(requestId, null, (Throwable) codec.decode((BytesMessage) msg, envelope));
+            } else {
+                response = new Response(requestId, codec.decode((BytesMessage) msg, envelope), null);
+            }
+            response.fromRemote = true;
+            return openStream(target, response);
+        } catch (JMSException e) {
+            return new Response(requestId, null, new UnmarshalException("Could not unmarshall response: " + e.getMessage(), e));
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * A response waiting in the response batcher.
+     */
+    static final class PendingResponse {
+        final Message requestMessage;
+        final Response response;
+
+        PendingResponse(Message requestMessage, Response response) {
+            this.requestMessage = requestMessage;
+            this.response = response;
+        }
+    }
+
+    void sendResponse(Message requestMessage, Response response) {
+        response = openStream(requestMessage, response);
+        if (responseBatchSize > 1) {
+            try {
+                getResponseBatcher().add(requestMessage.getJMSReplyTo(), new PendingResponse(requestMessage, response));
+                return;
+            } catch (JMSException e) {
+                // send it on its own then..
+            }
+        }
+        sendResponse(requestMessage, response, MSG_TYPE_RESPONSE, response.requestId);
+    }
+
+    void sendResponse(Message requestMessage, ResponseBatch batch) {
+        for (int i = 0; i < batch.responses.length; i++) {
+            batch.responses[i] = openStream(requestMessage, batch.responses[i]);
+        }
+        sendResponse(requestMessage, batch, MSG_TYPE_RESPONSE_BATCH, batch.responses[0].requestId);
+    }
+
+    /**
+     * Registers the stream of a streamed result and replaces the result with
+     * the first chunk. The others are sent on demand of the client.
+     */
+    private Response openStream(Message requestMessage, Response response) {
+        if (!(response.result instanceof StreamSource)) {
+            return response;
+        }
+        try {
+            StreamChunk first = openProducer((StreamSource) response.result, requestMessage.getJMSDeliveryMode(), requestMessage.getJMSPriority());
+            return new Response(response.requestId, first, null);
+        } catch (Exception e) {
+            return new Response(response.requestId, null, e);
+        }
+    }
+
+    /**
+     * Replaces the first chunk of a streamed result with the stream which
+     * receives the following ones.
+     */
+    private Response openStream(RequestExchange exchange, Response response) {
+        if (!(response.result instanceof StreamChunk)) {
+            return response;
+        }
+        // The producer forgets a stream idle for longer than its idle timeout.
+        long timeout = exchange.getTimeout();
+        if (streamIdleTimeout > 0 && (timeout <= 0 || timeout > streamIdleTimeout)) {
+            timeout = streamIdleTimeout;
+        }
+        StreamConsumer stream = openConsumer((StreamChunk) response.result, response.requestId, getUserClassLoader(exchange), timeout);
+        Response rc = new Response(response.requestId, stream.getValue(), null);
+        rc.fromRemote = true;
+        return rc;
+    }
+
+    /**
+     * Replaces the {@link InputStream} arguments, and the byte array ones
+     * larger than the threshold, with the first chunk of their stream. The
+     * input streams get closed once sent.
+     */
+    Object[] openArgumentStreams(Object[] params, int deliveryMode, int priority) throws RemoteException {
+        if (params == null) {
+            return null;
+        }
+        Object[] rc = params;
+        for (int i = 0; i < params.length; i++) {
+            Object param = params[i];
+            if (param instanceof InputStream || (param instanceof byte[] && streamBytesThreshold > 0 && ((byte[]) param).length > streamBytesThreshold)) {
+                if (rc == params) {
+                    rc = params.clone();
+                }
+                try {
+                    rc[i] = openProducer(new StreamSource(param, getUserClassLoader(param)), deliveryMode, priority);
+                } catch (TemplateClosedException tce) {
+                    throw new RemoteException("RemoteSystem reset", tce);
+                }
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Replaces the streamed arguments of a request with the stream which
+     * receives them. Streamed byte arrays are read completely.
+     * 
+     * @return the input streams to close once the request has been invoked,
+     *         or null if there are none.
+     */
+    List<StreamConsumer> receiveArgumentStreams(Object[] args, ClassLoader classLoader) throws Throwable {
+        if (args == null) {
+            return null;
+        }
+        ArrayList<StreamConsumer> rc = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof StreamChunk) {
+                StreamConsumer stream = openConsumer((StreamChunk) args[i], requestCounter.incrementAndGet(), classLoader, streamIdleTimeout);
+                if (stream.isBytes()) {
+                    args[i] = stream.readBytes();
+                } else {
+                    if (rc == null) {
+                        rc = new ArrayList<StreamConsumer>(2);
+                    }
+                    rc.add(stream);
+                    args[i] = stream.getValue();
+                }
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return the chunk which stands in for the source, the other ones are
+     *         sent on demand of the consumer.
+     */
+    private StreamChunk openProducer(StreamSource source, int deliveryMode, int priority) throws TemplateClosedException {
+        StreamProducer stream = new StreamProducer(this, streamCounter.incrementAndGet(), source, deliveryMode, priority, streamChunkSize, streamBlockSize, streamIdleTimeout);
+        streamProducers.put(stream.streamId, stream);
+        if (running.get()) {
+            // The demand comes through the system queue.
+            kickReceiveThread();
+        }
+        return stream.firstChunk(receiveTemplate.getLocalSystemQueue());
+    }
+
+    /**
+     * @param key
+     *            Identifies the stream among the ones consumed by this system.
+     *            It is the request id for streamed results.
+     */
+    private StreamConsumer openConsumer(StreamChunk first, long key, ClassLoader classLoader, long timeout) {
+        StreamConsumer stream = new StreamConsumer(this, key, first, classLoader, timeout, streamPrefetch);
+        if (!stream.isLast()) {
+            streamConsumers.put(key, stream);
+            stream.open();
+        }
+        return stream;
+    }
+
+    void sendStreamChunk(final Destination replyTo, final int deliveryMode, final int priority, final StreamChunk chunk, final long key) {
+        if (directSend) {
+            sendResponse(getDirectTemplate(), null, replyTo, deliveryMode, priority, chunk, MSG_TYPE_STREAM_CHUNK, key);
+            return;
+        }
+        // Always the same lane for a stream so that the chunks stay ordered.
+        final SenderLane lane = getSenderLane(key);
+        lane.execute(new Runnable() {
+            public void run() {
+                sendResponse(lane.template, null, replyTo, deliveryMode, priority, chunk, MSG_TYPE_STREAM_CHUNK, key);
+            }
+        });
+    }
+
+    /**
+     * Asks the producer of a stream for more chunks.
+     * 
+     * @param chunks
+     *            The number of chunks, 0 to close the stream.
+     */
+    void sendStreamDemand(final Destination source, final long streamId, final int chunks, final long key) {
+        final SenderLane lane = getSenderLane(key);
+        lane.execute(new Runnable() {
+            public void run() {
+                sendStreamDemand(lane.template, source, streamId, chunks, key);
+            }
+        });
+    }
+
+    private void sendStreamDemand(JMSTemplate sendTemplate, Destination source, long streamId, int chunks, long key) {
+        Retry retry = null;
+        while (running.get()) {
+            try {
+                Message msg = sendTemplate.getSession().createMessage();
+                msg.setJMSType(MSG_TYPE_STREAM_DEMAND);
+                msg.setLongProperty(MSG_PROP_STREAM, streamId);
+                msg.setIntProperty(MSG_PROP_CREDIT, chunks);
+                // Where and for which of our streams the chunks are.
+                msg.setLongProperty(MSG_PROP_REQUEST, key);
+                msg.setJMSReplyTo(receiveTemplate.getLocalSystemQueue());
+                sendTemplate.getMessageProducer().send(source, msg, DeliveryMode.NON_PERSISTENT, 9, 0);
+                return;
+            } catch (TemplateClosedException tce) {
+                return;
+            } catch (Exception e) {
+                if (retry == null) {
+                    retry = new Retry(this);
+                }
+                if (!retry.retry(sendTemplate, e)) {
+                    // the stream will time out..
+                    return;
+                }
+            }
+        }
+    }
+
+    private void sendResponse(final Message requestMessage, final Serializable response, final String type, final long requestId) {
+        if (directSend) {
+            sendResponse(getDirectTemplate(), requestMessage, response, type, requestId);
+            return;
+        }
+        final SenderLane lane = getSenderLane(requestId);
+        lane.execute(new Runnable() {
+            public void run() {
+                sendResponse(lane.template, requestMessage, response, type, requestId);
+            }
+        });
+    }
+
+    private void sendResponse(JMSTemplate sendTemplate, Message requestMessage, Serializable response, String type, long requestId) {
+        try {
+            sendResponse(sendTemplate, requestMessage, requestMessage.getJMSReplyTo(), requestMessage.getJMSDeliveryMode(), requestMessage.getJMSPriority(), response, type, requestId);
+        } catch (JMSException e) {
+            // The request message must not have been properly created..
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends the responses coalesced for one reply destination. The batch
+     * message gets the strongest quality of service asked for by the
+     * requests.
+     */
+    private void sendResponses(JMSTemplate sendTemplate, Destination replyTo, ArrayList<PendingResponse> pending) {
+        try {
+            if (pending.size() == 1) {
+                PendingResponse p = pending.get(0);
+                sendResponse(sendTemplate, p.requestMessage, replyTo, p.requestMessage.getJMSDeliveryMode(), p.requestMessage.getJMSPriority(), p.response, MSG_TYPE_RESPONSE, p.response.requestId);
+                return;
+            }
+            Response responses[] = new Response[pending.size()];
+            int deliveryMode = DeliveryMode.NON_PERSISTENT;
+            int priority = 0;
+            for (int i = 0; i < responses.length; i++) {
+                PendingResponse p = pending.get(i);
+                responses[i] = p.response;
+                if (p.requestMessage.getJMSDeliveryMode() == DeliveryMode.PERSISTENT) {
+                    deliveryMode = DeliveryMode.PERSISTENT;
+                }
+                priority = Math.max(priority, p.requestMessage.getJMSPriority());
+            }
+            sendResponse(sendTemplate, pending.get(0).requestMessage, replyTo, deliveryMode, priority, new ResponseBatch(responses), MSG_TYPE_RESPONSE_BATCH, responses[0].requestId);
+        } catch (JMSException e) {
+            // The request message must not have been properly created..
+            e.printStackTrace();
+        }
+    }
+
+    private void sendResponse(JMSTemplate sendTemplate, Message requestMessage, Destination replyTo, int deliveryMode, int priority, Serializable response, String type, long requestId) {
+        Message msg = null;
+        Retry retry = null;
+        while (running.get()) {
+            try {
+                Session session = sendTemplate.getSession();
+                MessageProducer producer = sendTemplate.getMessageProducer();
+                // Single responses are sent in the format of their request.
+                boolean envelope = requestMessage != null && MSG_TYPE_RESPONSE.equals(type) && Envelope.isEnvelope(requestMessage);
+                if (msg == null && envelope) {
+                    msg = encodeEnvelope(session, requestMessage, (Response) response);
+                } else if (msg == null) {
+                    try {
+                        msg = codec.encode(session, response, requestMessage, replyTo);
+                    } catch (JMSException e) {
+                        if (response instanceof ResponseBatch) {
+                            // Only fail the responses which cannot be marshalled.
+                            response = marshallable(requestMessage, (ResponseBatch) response);
+                            try {
+                                msg = codec.encode(session, response, requestMessage, replyTo);
+                            } catch (JMSException again) {
+                                // the requests will time out..
+                                throw new MarshalException("Could not marshall response batch: " + again.getMessage(), again);
+                            }
+                        } else {
+                            msg = codec.encode(session, new Response(requestId, null, new MarshalException("Could not marshall response: " + e.getMessage(), e)), requestMessage, replyTo);
+                        }
+                    }
+                }
+                if (!envelope) {
+                    msg.setLongProperty(MSG_PROP_REQUEST, requestId);
+                    msg.setJMSType(type);
+                    if (response instanceof ResponseBatch) {
+                        Response[] responses = ((ResponseBatch) response).responses;
+                        long[] ids = new long[responses.length];
+                        for (int i = 0; i < ids.length; i++) {
+                            ids[i] = responses[i].requestId;
+                        }
+                        setRequestIds(msg, ids);
+                    }
+                }
+                producer.send(replyTo, msg, deliveryMode, priority, 0);
+                return;
+            } catch (MarshalException e) {
+                e.printStackTrace();
+                return;
+            } catch (TemplateClosedException tce) {
+                //TODO we should probably just eat this.
+                tce.printStackTrace();
+                return;
+            } catch (Exception e) {
+                if (retry == null) {
+                    retry = new Retry(this);
+                }
+                if (!retry.retry(sendTemplate, e)) {
+                    // the requests will time out..
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the batch where each response which cannot be
+     *         marshalled is replaced with a {@link MarshalException}.
+     */
+    private ResponseBatch marshallable(Message requestMessage, ResponseBatch batch) {
+        Response responses[] = new Response[batch.responses.length];
+        for (int i = 0; i < responses.length; i++) {
+            Response response = batch.responses[i];
+            try {
+                codec.checkEncodable(response, requestMessage);
+                responses[i] = response;
+            } catch (JMSException e) {
+                responses[i] = new Response(response.requestId, null, new MarshalException("Could not marshall response: " + e.getMessage(), e));
+            }
+        }
+        return new ResponseBatch(responses);
+    }
+
+    private Message encodeEnvelope(Session session, Message requestMessage, Response response) throws JMSException {
+        Envelope request = Envelope.read(requestMessage);
+        try {
+            return codec.encode(session, Envelope.response(response, request), response.exception != null ? response.exception : response.result, requestMessage);
+        } catch (JMSException e) {
+            Response error = new Response(response.requestId, null, new MarshalException("Could not marshall response: " + e.getMessage(), e));
+            return codec.encode(session, Envelope.response(error, request), error.exception, requestMessage);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Exetend to implement for a different JMS provider
+    ///////////////////////////////////////////////////////////////////
+    abstract protected ConnectionFactory createConnectionFactory();
+
+    abstract protected Destination createQueue(String queueId);
+
+    abstract protected Destination createTopic(String topicId);
+
+    ///////////////////////////////////////////////////////////////////
+    // Helper Methods...
+    ///////////////////////////////////////////////////////////////////
+
+    ExecutorService getDispatchThreads() {
+        // Checked without the lock first: the receive thread uses it to notify
+        // future listeners while reset() holds the lock waiting for it to stop.
+        ExecutorService threads = dispatchThreads;
+        if (threads == null) {
+            synchronized (this) {
+                threads = dispatchThreads;
+                if (threads == null) {
+                    threads = Executors.newCachedThreadPool(threadFactory("RMI via JMS: service"));
+                    dispatchThreads = threads;
+                }
+            }
+        }
+        return threads;
+    }
+
+    SenderLane[] getSenderLanes() {
+        SenderLane[] lanes = senderLanes;
+        if (lanes == null) {
+            synchronized (this) {
+                lanes = senderLanes;
+                if (lanes == null) {
+                    lanes = new SenderLane[senderLaneCount];
+                    for (int i = 0; i < lanes.length; i++) {
+                        String name = lanes.length == 1 ? "RMI via JMS: sender" : "RMI via JMS: sender " + i;
+                        lanes[i] = new SenderLane(new JMSTemplate(this), Executors.newSingleThreadExecutor(threadFactory(name)), metrics.counter(Metrics.LANE_TASKS + i));
+                    }
+                    senderLanes = lanes;
+                }
+            }
+        }
+        return lanes;
+    }
+
+    Coalescer<Object, RequestExchange> getOnewayBatcher() {
+        Coalescer<Object, RequestExchange> batcher = onewayBatcher;
+        if (batcher == null) {
+            synchronized (this) {
+                batcher = onewayBatcher;
+                if (batcher == null) {
+                    batcher = new Coalescer<Object, RequestExchange>(getTimer(), onewayBatchSize, onewayBatchDelay) {
+                        @Override
+                        protected void flush(Object key, ArrayList<RequestExchange> exchanges) {
+                            SenderLane lane = getSenderLane(exchanges.get(0).getRemoteRef());
+                            lane.execute(new BatchSend(JMSRemoteSystem.this, lane, exchanges, true, false));
+                        }
+                    };
+                    onewayBatcher = batcher;
+                }
+            }
+        }
+        return batcher;
+    }
+
+    Coalescer<Destination, PendingResponse> getResponseBatcher() {
+        Coalescer<Destination, PendingResponse> batcher = responseBatcher;
+        if (batcher == null) {
+            synchronized (this) {
+                batcher = responseBatcher;
+                if (batcher == null) {
+                    batcher = new Coalescer<Destination, PendingResponse>(getTimer(), responseBatchSize, responseBatchDelay) {
+                        @Override
+                        protected void flush(final Destination replyTo, final ArrayList<PendingResponse> pending) {
+                            final SenderLane lane = getSenderLane(pending.get(0).response.requestId);
+                            lane.execute(new Runnable() {
+                                public void run() {
+                                    sendResponses(lane.template, replyTo, pending);
+                                }
+                            });
+                        }
+                    };
+                    responseBatcher = batcher;
+                }
+            }
+        }
+        return batcher;
+    }
+
+    ResultCache getResultCache(MethodInfo method) {
+        ResultCache cache = resultCaches.get(method.method);
+        if (cache == null) {
+            cache = new ResultCache(method.cacheable.maxEntries(), method.cacheable.ttl(), metrics);
+            ResultCache existing = resultCaches.putIfAbsent(method.method, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Drops the cached results of the given remote object.
+     */
+    public void invalidateCache(JMSRemoteRef ref) {
+        Object targetKey = ref.getTargetKey();
+        for (ResultCache cache : resultCaches.values()) {
+            cache.invalidate(targetKey);
+        }
+    }
+
+    /**
+     * @return a snapshot of the system's counters.
+     */
+    public Map<String, Long> getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Gets the calling thread's own template used in direct send mode.
+     */
+    JMSTemplate getDirectTemplate() {
+        ThreadLocal<JMSTemplate> local = directTemplates;
+        JMSTemplate template = local.get();
+        if (template == null) {
+            synchronized (this) {
+                if (directConnection == null) {
+                    directConnection = new JMSTemplate(this);
+                }
+                template = new JMSTemplate(this, directConnection);
+            }
+            allDirectTemplates.add(template);
+            local.set(template);
+        }
+        return template;
+    }
+
+    /**
+     * @return the executor running the one way batches sent to an object one
+     *         after the other on the dispatch threads.
+     */
+    Executor getOnewayBatchExecutor(long oid) {
+        SerialExecutor rc = onewayBatchExecutors.get(oid);
+        if (rc == null) {
+            rc = new SerialExecutor(getDispatchThreads());
+            SerialExecutor existing = onewayBatchExecutors.putIfAbsent(oid, rc);
+            if (existing != null) {
+                rc = existing;
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Closes the calling thread's direct send template, if it has one.
+     */
+    void closeDirectTemplate() {
+        ThreadLocal<JMSTemplate> local = directTemplates;
+        JMSTemplate template = local.get();
+        if (template != null) {
+            local.remove();
+            allDirectTemplates.remove(template);
+            template.close();
+        }
+    }
+
+    /**
+     * Picks the sender lane for requests targeting the given object, so that
+     * calls made through a proxy are sent in order.
+     */
+    SenderLane getSenderLane(JMSRemoteRef ref) {
+        SenderLane[] lanes = getSenderLanes();
+        if (lanes.length == 1) {
+            return lanes[0];
+        }
+        long oid = ref.getObjectId();
+        int hash = ref.getDestination().hashCode() * 31 + (int) (oid ^ (oid >>> 32));
+        return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+    }
+
+    /**
+     * Picks the sender lane for a response. Responses do not need to be
+     * ordered, so they are spread by request id.
+     */
+    SenderLane getSenderLane(long requestId) {
+        SenderLane[] lanes = getSenderLanes();
+        return lanes[(int) ((requestId & Long.MAX_VALUE) % lanes.length)];
+    }
+
+    synchronized TimerWheel getTimer() {
+        if (timer == null) {
+            timer = new TimerWheel("RMI via JMS: timer", TIMER_TICK, 512);
+        }
+        return timer;
+    }
+
+    /**
+     * Backs off through the retry policy after a failure to start receiving
+     * from the system queue.
+     * 
+     * @return false once the system is reset, or the policy gives up.
+     */
+    private boolean retryReceive(Retry retry, JMSException cause) {
+        // reset() closes the template before it waits for the lock we hold.
+        if (!running.get() || receiveTemplate.isClosed()) {
+            return false;
+        }
+        return retry.retry(receiveTemplate, cause);
+    }
+
+    synchronized Thread kickReceiveThread() throws TemplateClosedException {
+        if (receiveThread == null && receiveListener == null && asyncReceive) {
+            receiveListener = new MessageListener() {
+                public void onMessage(Message msg) {
+                    if (!running.get()) {
+                        return;
+                    }
+                    Thread thread = Thread.currentThread();
+                    ClassLoader original = thread.getContextClassLoader();
+                    try {
+                        dispatch(msg);
+                    } catch (Throwable thrown) {
+                        thrown.printStackTrace();
+                    } finally {
+                        thread.setContextClassLoader(original);
+                    }
+                }
+            };
+            Retry retry = new Retry(this);
+            while (true) {
+                try {
+                    receiveTemplate.listen(receiveTemplate.getLocalSystemQueue(), receiveListener);
+                    break;
+                } catch (JMSException e1) {
+                    if (!retryReceive(retry, e1)) {
+                        receiveListener = null;
+                        throw receiveTemplate.new TemplateClosedException();
+                    }
+                }
+            }
+        } else if (receiveThread == null && receiveListener == null) {
 
             //Make sure our consumer is created in this thread, so as not
             //to miss invocation requests.
+            Retry retry = new Retry(this);
             while (true) {
                 try {
                     receiveTemplate.getMessageConsumer();
                     break;
                 } catch (JMSException e1) {
-                    receiveTemplate.reset();
+                    if (!retryReceive(retry, e1)) {
+                        throw receiveTemplate.new TemplateClosedException();
+                    }
                 }
             }
             receiveThread = new Thread() {
@@ -424,8 +2108,18 @@ public abstract class JMSRemoteSystem {
 
     private ThreadFactory threadFactory(final String name) {
         return new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                Thread thread = new Thread(r);
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            // Pool threads retire when idle, their sessions go with them.
+                            closeDirectTemplate();
+                        }
+                    }
+                };
                 thread.setName(name);
                 thread.setDaemon(true);
                 return thread;
@@ -468,6 +2162,66 @@ public abstract class JMSRemoteSystem {
         return sb.toString();
     }
 
+    /**
+     * Hashes a method signature into the id which identifies the method in the
+     * requests, the way RMI computes its operation numbers: the first 8 bytes
+     * of the SHA-1 digest of the signature, read little endian.
+     */
+    static long methodHash(String signature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA");
+            byte[] hash = digest.digest(signature.getBytes("UTF-8"));
+            long rc = 0;
+            for (int i = 0; i < Math.min(8, hash.length); i++) {
+                rc += (long) (hash[i] & 0xFF) << (i * 8);
+            }
+            return rc;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static RetryPolicy createRetryPolicy() {
+        try {
+            return (RetryPolicy) newInstance(RETRY_POLICY_CLASS);
+        } catch (Exception e) {
+            throw new RuntimeException("Invalid setting for the org.fusesource.rmiviajms.RETRY_POLICY_CLASS system property: " + e, e);
+        }
+    }
+
+    private static ConcurrentHashMap<String, Serializer> createSerializers() {
+        ConcurrentHashMap<String, Serializer> rc = new ConcurrentHashMap<String, Serializer>();
+        rc.put(JavaSerializer.NAME, new JavaSerializer());
+        rc.put(CompactSerializer.NAME, new CompactSerializer());
+        try {
+            for (String className : SERIALIZER_CLASSES.split(",")) {
+                className = className.trim();
+                if (className.length() > 0) {
+                    Serializer serializer = (Serializer) newInstance(className);
+                    rc.put(serializer.getName(), serializer);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Invalid setting for the org.fusesource.rmiviajms.SERIALIZER_CLASSES system property: " + e, e);
+        }
+        return rc;
+    }
+
+    private static Object newInstance(String className) throws Exception {
+        try {
+            return JMSRemoteSystem.class.getClassLoader().loadClass(className).newInstance();
+        } catch (ClassNotFoundException cnfe) {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl != null) {
+                return cl.loadClass(className).newInstance();
+            } else {
+                throw cnfe;
+            }
+        }
+    }
+
     private static JMSRemoteSystem createJMSRemoteSystem() {
         try {
             try {
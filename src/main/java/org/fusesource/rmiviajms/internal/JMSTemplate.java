@@ -22,8 +22,13 @@ import javax.jms.*;
 
 /**
  * Helper JMS class that caches the JMS objects.
+ * <p>
+ * A template can be created on top of another template, in which case it
+ * only caches its own session and producer and uses the other template's
+ * connection.
  */
 class JMSTemplate {
+    private final JMSTemplate connectionTemplate;
     private Session session;
     private Connection connection;
     private ConnectionFactory connectionFactory;
@@ -32,25 +37,59 @@ class JMSTemplate {
     private Destination localSystemQueue;
     private JMSRemoteSystem remoteSystem;
     private AtomicBoolean closed = new AtomicBoolean(false);
+    private Destination listenerDestination;
+    private MessageListener listener;
+    // Counts the connections created, a child records the one its session is on.
+    private int generation;
 
     public class TemplateClosedException extends Exception {
     }
 
     public JMSTemplate(JMSRemoteSystem remoteSystem) {
+        this(remoteSystem, null);
+    }
+
+    public JMSTemplate(JMSRemoteSystem remoteSystem, JMSTemplate connectionTemplate) {
         this.remoteSystem = remoteSystem;
+        this.connectionTemplate = connectionTemplate;
     }
 
     public void close() {
         if (closed.compareAndSet(false, true)) {
-            reset();
+            if (connectionTemplate != null) {
+                closeSession();
+            } else {
+                reset();
+            }
         }
     }
 
     void reset() {
+        if (connectionTemplate != null) {
+            int failed;
+            synchronized (this) {
+                failed = generation;
+            }
+            // The failure was most likely the shared connection's, unless
+            // another thread already replaced it.
+            closeSession();
+            connectionTemplate.reset(failed);
+            return;
+        }
+        reset(-1);
+    }
 
+    /**
+     * Closes the connection, but only if it still is the one of the given
+     * generation. A negative generation closes any connection.
+     */
+    private void reset(int failed) {
         Connection oldConn = null;
 
         synchronized (this) {
+            if (failed >= 0 && failed != generation) {
+                return;
+            }
             oldConn = connection;
             connection = null;
 
@@ -72,6 +111,22 @@ class JMSTemplate {
         }
     }
 
+    private void closeSession() {
+        Session oldSession;
+        synchronized (this) {
+            oldSession = session;
+            session = null;
+            producer = null;
+            consumer = null;
+        }
+        if (oldSession != null) {
+            try {
+                oldSession.close();
+            } catch (JMSException jmse) {
+            }
+        }
+    }
+
     Destination getLocalSystemQueue() {
         if (localSystemQueue == null) {
             localSystemQueue = remoteSystem.createQueue(remoteSystem.getSystemId());
@@ -90,6 +145,53 @@ class JMSTemplate {
         return getMessageConsumer(getLocalSystemQueue());
     }
 
+    /**
+     * Has the provider push the messages of a destination to a listener
+     * instead of them being received. The consumer is created again with the
+     * listener when the connection gets reset after a failure, and closing
+     * the template stops the deliveries once the listener returns.
+     */
+    void listen(Destination destination, MessageListener listener) throws JMSException, TemplateClosedException {
+        synchronized (this) {
+            this.listenerDestination = destination;
+            this.listener = listener;
+        }
+        getMessageConsumer(destination).setMessageListener(listener);
+    }
+
+    /**
+     * Creates the listening consumer again from a dispatch thread, retrying
+     * every half second until it succeeds or the template gets closed.
+     */
+    private void relisten() {
+        final Destination destination;
+        final MessageListener listener;
+        synchronized (this) {
+            destination = listenerDestination;
+            listener = this.listener;
+        }
+        if (listener == null || closed.get() || !remoteSystem.running.get()) {
+            return;
+        }
+        remoteSystem.getDispatchThreads().execute(new Runnable() {
+            public void run() {
+                while (!closed.get() && remoteSystem.running.get()) {
+                    try {
+                        Thread.sleep(500);
+                        getMessageConsumer(destination).setMessageListener(listener);
+                        return;
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (TemplateClosedException e) {
+                        return;
+                    } catch (JMSException e) {
+                        reset();
+                    }
+                }
+            }
+        });
+    }
+
     MessageProducer getMessageProducer() throws JMSException, TemplateClosedException {
         if (producer == null) {
             producer = getSession().createProducer(null);
@@ -97,6 +199,10 @@ class JMSTemplate {
         return producer;
     }
 
+    boolean isClosed() {
+        return closed.get();
+    }
+
     Session getSession() throws JMSException, TemplateClosedException {
         if (session == null) {
             session = getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -108,8 +214,16 @@ class JMSTemplate {
         if (closed.get()) {
             throw new JMSException("JMSTemplate Closed");
         }
+        if (connectionTemplate != null) {
+            synchronized (connectionTemplate) {
+                Connection rc = connectionTemplate.getConnection();
+                generation = connectionTemplate.generation;
+                return rc;
+            }
+        }
         if (connection == null) {
             connection = getConnectionFactory().createConnection();
+            generation++;
             connection.setExceptionListener(new ExceptionListener() {
                 final Connection thisConn = connection;
 
@@ -125,6 +239,7 @@ class JMSTemplate {
                         if (reset) {
                             if (!closed.get() && reset) {
                                 reset();
+                                relisten();
                             }
                         }
                     } catch (Throwable thrown) {
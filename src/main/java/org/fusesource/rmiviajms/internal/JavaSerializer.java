@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.fusesource.rmiviajms.Serializer;
+
+/**
+ * Plain Java serialization.
+ */
+final class JavaSerializer implements Serializer {
+
+    static final String NAME = "java";
+
+    public String getName() {
+        return NAME;
+    }
+
+    public void serialize(Object object, OutputStream out) throws IOException {
+        if (out instanceof MarshallingBuffer) {
+            ((MarshallingBuffer) out).writeObject(object);
+            return;
+        }
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeObject(object);
+        oos.flush();
+    }
+
+    public Object deserialize(InputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        return new ClassLoadingObjectInputStream(in, classLoader).readObject();
+    }
+}
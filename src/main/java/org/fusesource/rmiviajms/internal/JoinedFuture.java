@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.fusesource.rmiviajms.RemoteFuture;
+
+/**
+ * The future of one caller of an asynchronous call shared by several callers
+ * (see {@link org.fusesource.rmiviajms.Idempotent}). Canceling it only
+ * detaches that caller, the shared request still completes the futures of
+ * the other callers.
+ */
+final class JoinedFuture implements RemoteFuture<Object>, RemoteFuture.Listener<Object> {
+
+    private final JMSRemoteSystem remoteSystem;
+    private final RequestExchange exchange;
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private boolean cancelled;
+    private ArrayList<Listener<Object>> listeners;
+
+    private JoinedFuture(JMSRemoteSystem remoteSystem, RequestExchange exchange) {
+        this.remoteSystem = remoteSystem;
+        this.exchange = exchange;
+    }
+
+    static JoinedFuture join(JMSRemoteSystem remoteSystem, RequestExchange exchange) {
+        JoinedFuture future = new JoinedFuture(remoteSystem, exchange);
+        exchange.addListener(future);
+        return future;
+    }
+
+    public void onComplete(RemoteFuture<Object> future) {
+        complete(false);
+    }
+
+    private boolean complete(boolean cancel) {
+        final ArrayList<Listener<Object>> l;
+        synchronized (this) {
+            if (completed.getCount() == 0) {
+                return false;
+            }
+            cancelled = cancel;
+            completed.countDown();
+            l = listeners;
+            listeners = null;
+        }
+        if (l != null) {
+            remoteSystem.getDispatchThreads().execute(new Runnable() {
+                public void run() {
+                    for (Listener<Object> listener : l) {
+                        try {
+                            listener.onComplete(JoinedFuture.this);
+                        } catch (Throwable thrown) {
+                            thrown.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        completed.await();
+        return getCompletedResult();
+    }
+
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completed.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getCompletedResult();
+    }
+
+    private Object getCompletedResult() throws InterruptedException, ExecutionException {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+        return exchange.get();
+    }
+
+    public boolean isDone() {
+        return completed.getCount() == 0;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(true);
+    }
+
+    public void addListener(Listener<Object> listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Listener<Object>>(2);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.rmi.MarshalException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+
+/**
+ * Invokes an object exported by this JVM without going through the broker,
+ * and completes the request's exchange with the response.
+ */
+final class LocalCall implements Runnable {
+
+    private final Skeleton skeleton;
+    private final RequestExchange exchange;
+    private final Request request;
+    private final boolean oneway;
+    private final ClassLoader callerClassLoader;
+
+    /**
+     * @param copy
+     *            true to pass copies of the arguments and result. The
+     *            arguments get copied right away, so the caller may reuse them
+     *            once this returns.
+     * @throws MarshalException
+     *             If the arguments could not be copied.
+     */
+    LocalCall(Skeleton skeleton, RequestExchange exchange, boolean oneway, boolean copy) throws MarshalException {
+        this.skeleton = skeleton;
+        this.exchange = exchange;
+        this.oneway = oneway;
+        this.callerClassLoader = copy ? Thread.currentThread().getContextClassLoader() : null;
+        if (copy) {
+            try {
+                this.request = (Request) copy(exchange.getRequest(), skeleton.getTargetClassLoader());
+            } catch (Exception e) {
+                throw new MarshalException("Could not copy the arguments: " + e.getMessage(), e);
+            }
+        } else {
+            this.request = exchange.getRequest();
+        }
+    }
+
+    public void run() {
+        Response response = skeleton.invoke(request);
+        if (oneway) {
+            if (response.exception != null) {
+                response.exception.printStackTrace();
+            }
+            return;
+        }
+        if (response.result instanceof StreamSource) {
+            response = stream((StreamSource) response.result);
+        } else if (callerClassLoader != null) {
+            try {
+                response = (Response) copy(response, callerClassLoader);
+            } catch (Exception e) {
+                response = new Response(request.requestId, null, new UnmarshalException("Could not copy the result: " + e.getMessage(), e));
+                exchange.setResponse(response);
+                return;
+            }
+        }
+        response.fromRemote = true;
+        exchange.setResponse(response);
+    }
+
+    /**
+     * Hands over the result of a streamed method. When copying, its elements
+     * are copied all at once since there is no need to chunk them in memory.
+     */
+    @SuppressWarnings("unchecked")
+    private Response stream(StreamSource result) {
+        if (callerClassLoader == null) {
+            return new Response(request.requestId, result.source, null);
+        }
+        Object elements;
+        try {
+            elements = result.drain();
+        } catch (Throwable e) {
+            return new Response(request.requestId, null, e);
+        }
+        switch (result.kind) {
+        case StreamSource.INPUT_STREAM:
+            return new Response(request.requestId, new ByteArrayInputStream((byte[]) elements), null);
+        case StreamSource.BYTES:
+            return new Response(request.requestId, elements, null);
+        }
+        try {
+            elements = copy(elements, callerClassLoader);
+        } catch (Exception e) {
+            return new Response(request.requestId, null, new UnmarshalException("Could not copy the result: " + e.getMessage(), e));
+        }
+        return new Response(request.requestId, result.kind == StreamSource.ITERABLE ? elements : ((ArrayList<Object>) elements).iterator(), null);
+    }
+
+    /**
+     * Stands in for an input stream in a copy.
+     */
+    private static final class StreamReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int index;
+
+        StreamReference(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Copies an object graph by serializing it. Input streams can not be
+     * copied without reading them, so they are passed by reference.
+     */
+    private static Object copy(Object object, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        final ArrayList<InputStream> streams = new ArrayList<InputStream>();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) {
+                if (obj instanceof InputStream) {
+                    streams.add((InputStream) obj);
+                    return new StreamReference(streams.size() - 1);
+                }
+                return obj;
+            }
+        };
+        out.writeObject(object);
+        out.close();
+        ObjectInputStream in = new ClassLoadingObjectInputStream(new ByteArrayInputStream(baos.toByteArray()), classLoader) {
+            {
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) {
+                if (obj instanceof StreamReference) {
+                    return streams.get(((StreamReference) obj).index);
+                }
+                return obj;
+            }
+        };
+        return in.readObject();
+    }
+}
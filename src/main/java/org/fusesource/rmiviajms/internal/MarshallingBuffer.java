@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.util.zip.Deflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+
+/**
+ * A growable buffer the request and response bodies are marshalled into
+ * before being copied into their messages. Each thread reuses its own buffer
+ * along with the streams and the {@link Deflater} writing into it, so that
+ * marshalling small bodies does not allocate any new arrays once the thread
+ * has warmed up.
+ * <p>
+ * A buffer is acquired for the marshalling of one body and released once it
+ * has been copied. A thread marshalling another body in the meantime, from
+ * the <code>writeObject</code> method of an argument for instance, gets a
+ * fresh buffer. Buffers grown larger than {@link #MAX_RETAINED} bytes are
+ * dropped on release so that the threads do not hold on to the memory of
+ * their largest body.
+ */
+final class MarshallingBuffer extends ByteArrayOutputStream {
+
+    static final int INITIAL_SIZE = 1024;
+    static final int MAX_RETAINED = 64 * 1024;
+
+    private static final byte[] STREAM_HEADER = { (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >>> 8), (byte) ObjectStreamConstants.STREAM_VERSION };
+
+    private static final ThreadLocal<MarshallingBuffer> BUFFERS = new ThreadLocal<MarshallingBuffer>();
+
+    private boolean acquired;
+    private DataOutputStream dataOutput;
+    private ObjectOutputStream objectOutput;
+    private Deflater deflater;
+    private int deflaterLevel;
+    private MarshallingBuffer deflated;
+
+    private MarshallingBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * @return the calling thread's buffer, or a new one if it is already in
+     *         use.
+     */
+    static MarshallingBuffer acquire() {
+        MarshallingBuffer rc = BUFFERS.get();
+        if (rc == null) {
+            rc = new MarshallingBuffer();
+            BUFFERS.set(rc);
+        } else if (rc.acquired) {
+            rc = new MarshallingBuffer();
+        }
+        rc.acquired = true;
+        return rc;
+    }
+
+    /**
+     * Empties the buffer and gives it back to the calling thread.
+     */
+    void release() {
+        acquired = false;
+        reset();
+        if (BUFFERS.get() != this) {
+            end();
+        } else if (buf.length > MAX_RETAINED || (deflated != null && deflated.buf.length > MAX_RETAINED)) {
+            BUFFERS.remove();
+            end();
+        }
+    }
+
+    /**
+     * @return a data output writing into this buffer, created once.
+     */
+    DataOutputStream getDataOutput() {
+        if (dataOutput == null) {
+            dataOutput = new DataOutputStream(this);
+        }
+        return dataOutput;
+    }
+
+    /**
+     * Appends an object the way a new {@link ObjectOutputStream} would, stream
+     * header included, while reusing the same stream and its tables for every
+     * object.
+     */
+    void writeObject(Object object) throws IOException {
+        if (objectOutput == null) {
+            objectOutput = new ObjectOutputStream(this);
+            objectOutput.flush();
+        } else {
+            write(STREAM_HEADER, 0, STREAM_HEADER.length);
+        }
+        boolean ok = false;
+        try {
+            objectOutput.writeObject(object);
+            // forgets the objects written so far, and writes a reset marker
+            // the next object does not need since it starts a new stream.
+            objectOutput.reset();
+            objectOutput.flush();
+            if (count == 0 || buf[count - 1] != ObjectStreamConstants.TC_RESET) {
+                throw new StreamCorruptedException("Missing stream reset marker");
+            }
+            count--;
+            ok = true;
+        } finally {
+            if (!ok) {
+                // the stream may be left in the middle of an object.
+                objectOutput = null;
+            }
+        }
+    }
+
+    /**
+     * @return the buffer holding the deflated content of this one, which is
+     *         emptied when this one is released.
+     */
+    MarshallingBuffer deflate(int level) throws IOException {
+        if (deflater == null || deflaterLevel != level) {
+            if (deflater != null) {
+                deflater.end();
+            }
+            deflater = new Deflater(level);
+            deflaterLevel = level;
+        } else {
+            deflater.reset();
+        }
+        if (deflated == null) {
+            deflated = new MarshallingBuffer();
+        }
+        deflated.reset();
+        deflater.setInput(buf, 0, count);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (deflated.count == deflated.buf.length) {
+                deflated.grow();
+            }
+            deflated.count += deflater.deflate(deflated.buf, deflated.count, deflated.buf.length - deflated.count);
+        }
+        return deflated;
+    }
+
+    void writeTo(BytesMessage msg) throws JMSException {
+        msg.writeBytes(buf, 0, count);
+    }
+
+    private void grow() {
+        byte[] larger = new byte[buf.length << 1];
+        System.arraycopy(buf, 0, larger, 0, count);
+        buf = larger;
+    }
+
+    private void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+}
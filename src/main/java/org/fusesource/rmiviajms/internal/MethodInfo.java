@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.lang.reflect.Method;
+
+import javax.jms.DeliveryMode;
+
+import org.fusesource.rmiviajms.Cacheable;
+import org.fusesource.rmiviajms.Idempotent;
+import org.fusesource.rmiviajms.Persistent;
+import org.fusesource.rmiviajms.Priority;
+import org.fusesource.rmiviajms.Timeout;
+
+/**
+ * Immutable description of how a remote method gets invoked. It is computed
+ * once per proxy and method so that the invocation path does not have to look
+ * at the method annotations or build the signature string on every call.
+ */
+final class MethodInfo {
+
+    final Method method;
+    final String signature;
+    final long methodHash;
+    final boolean oneway;
+    final boolean async;
+    final boolean streamed;
+    final long timeout;
+    final int deliveryMode;
+    final int priority;
+    final Cacheable cacheable;
+    final boolean idempotent;
+
+    MethodInfo(Method method) {
+        this.method = method;
+        this.signature = JMSRemoteSystem.signature(method);
+        this.methodHash = JMSRemoteSystem.methodHash(signature);
+        this.oneway = JMSRemoteRef.isOneWay(method);
+        this.async = !oneway && JMSRemoteRef.isAsync(method);
+        this.streamed = !oneway && JMSRemoteRef.isStreamed(method);
+
+        long timeout = 0;
+        if (!oneway) {
+            Timeout t = method.getAnnotation(Timeout.class);
+            timeout = t != null ? t.value() : JMSRemoteSystem.REQUEST_TIMEOUT;
+        }
+        this.timeout = timeout;
+
+        this.deliveryMode = method.isAnnotationPresent(Persistent.class) ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+        Priority p = method.getAnnotation(Priority.class);
+        this.priority = p != null ? p.value() : 4;
+
+        // Only plain synchronous calls can be answered from the cache, and
+        // streamed results can only be iterated by one caller.
+        this.cacheable = oneway || async || streamed ? null : method.getAnnotation(Cacheable.class);
+        this.idempotent = !oneway && !streamed && (cacheable != null || method.isAnnotationPresent(Idempotent.class));
+    }
+
+    @Override
+    public String toString() {
+        return signature;
+    }
+}
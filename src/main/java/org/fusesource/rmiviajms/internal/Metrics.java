@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters of a remote system.
+ */
+final class Metrics {
+
+    static final String CACHE_HITS = "cache.hits";
+    static final String CACHE_MISSES = "cache.misses";
+    static final String CACHE_EVICTIONS = "cache.evictions";
+    static final String COALESCED_CALLS = "calls.coalesced";
+    static final String LOCAL_CALLS = "calls.local";
+    static final String WINDOW_INFLIGHT = "window.inflight";
+    static final String WINDOW_QUEUED = "window.queued";
+    static final String WINDOW_REJECTED = "window.rejected";
+    static final String ONEWAY_DROPPED = "oneway.dropped";
+    static final String CREDITS_RESYNCED = "oneway.credits-resynced";
+    static final String SEND_RETRIES = "send.retries";
+    static final String SEND_FAILURES = "send.failures";
+    static final String RECONNECTS = "reconnects";
+    static final String CIRCUIT_OPENED = "circuit.opened";
+    static final String CIRCUIT_HALF_OPENED = "circuit.half-opened";
+    static final String CIRCUIT_CLOSED = "circuit.closed";
+    static final String CIRCUIT_REJECTED = "circuit.rejected";
+    static final String STREAM_CHUNKS = "stream.chunks";
+    static final String PAYLOADS_COMPRESSED = "payloads.compressed";
+    static final String REQUESTS_EXPIRED = "requests.expired";
+    static final String DESCRIPTORS_SHARED = "descriptors.shared";
+    /**
+     * Prefix of the per sender lane counters of the tasks executed, followed
+     * by the lane index.
+     */
+    static final String LANE_TASKS = "lane.tasks.";
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counter = new AtomicLong();
+            AtomicLong existing = counters.putIfAbsent(name, counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        return counter;
+    }
+
+    void increment(String name) {
+        counter(name).incrementAndGet();
+    }
+
+    /**
+     * @return a sorted copy of the current counter values.
+     */
+    Map<String, Long> snapshot() {
+        TreeMap<String, Long> rc = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            rc.put(entry.getKey(), entry.getValue().get());
+        }
+        return rc;
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.fusesource.rmiviajms.Serializer;
+
+/**
+ * Turns the bodies of the requests and responses into messages and back.
+ * <p>
+ * With Java serialization and without compression bodies are sent as
+ * {@link ObjectMessage}s. Otherwise they are serialized into
+ * {@link BytesMessage}s, deflated when larger than the threshold. The
+ * {@link JMSRemoteSystem#MSG_PROP_SERIALIZER} property names the serializer,
+ * Java serialization when absent, and the
+ * {@link JMSRemoteSystem#MSG_PROP_ENCODING} property tells whether the bytes
+ * are deflated. Receivers decode whatever they get regardless of their own
+ * settings, as long as they have the serializer registered, and responses are
+ * encoded with the serializer of their request.
+ * <p>
+ * Messages in the binary {@link Envelope} format carry the serializer name and
+ * the deflated flag in their header instead.
+ * <p>
+ * Java serialization bodies sent to a system queue can refer to the class
+ * descriptors shared with that system through the {@link ClassTables}, which
+ * is flagged by the {@link #SHARED_JAVA} serializer name. The
+ * acknowledgements of the shared descriptors ride along with any message.
+ */
+final class PayloadCodec {
+
+    /**
+     * The encoding of uncompressed bodies, named after the only serializer
+     * earlier versions knew about.
+     */
+    static final String ENCODING_JAVA = "java";
+    static final String ENCODING_DEFLATE = "deflate";
+
+    /**
+     * The serializer name of the Java serialization bodies using the shared
+     * class descriptors.
+     */
+    static final String SHARED_JAVA = "java-shared";
+
+    private final Map<String, Serializer> serializers;
+    private final Serializer serializer;
+    private final int threshold;
+    private final int level;
+    private final ClassTables classTables;
+    private final boolean shareClassDescriptors;
+    private final Metrics metrics;
+
+    /**
+     * @param serializers
+     *            The serializers which can be used to decode, by name.
+     * @param serializer
+     *            The serializer used to encode the requests, and the responses
+     *            to requests which came as {@link ObjectMessage}s.
+     * @param threshold
+     *            The serialized size above which bodies get compressed, 0 to
+     *            disable compression.
+     * @param level
+     *            The {@link Deflater} compression level.
+     * @param shareClassDescriptors
+     *            Whether Java serialization bodies sent to system queues use
+     *            the shared class descriptors. Responses to requests using
+     *            them do regardless.
+     */
+    PayloadCodec(Map<String, Serializer> serializers, Serializer serializer, int threshold, int level, ClassTables classTables, boolean shareClassDescriptors, Metrics metrics) {
+        this.serializers = serializers;
+        this.serializer = serializer;
+        this.threshold = threshold;
+        this.level = level;
+        this.classTables = classTables;
+        this.shareClassDescriptors = shareClassDescriptors;
+        this.metrics = metrics;
+    }
+
+    boolean isSharingClassDescriptors() {
+        return shareClassDescriptors;
+    }
+
+    Serializer getSerializer() {
+        return serializer;
+    }
+
+    /**
+     * @param inReplyTo
+     *            The request message the body answers, if any. The body is
+     *            encoded with its serializer when it is registered here.
+     * @param destination
+     *            The destination the message is sent to.
+     */
+    Message encode(Session session, Serializable body, Message inReplyTo, Destination destination) throws JMSException {
+        Serializer serializer = serializerFor(inReplyTo);
+        boolean java = JavaSerializer.NAME.equals(serializer.getName());
+        String localId = classTables.getLocalId();
+        String peer = ClassTables.peerOf(destination);
+        boolean share = java && localId != null && peer != null && (shareClassDescriptors || isShared(inReplyTo));
+
+        Message msg;
+        if (threshold <= 0 && java && !share) {
+            try {
+                msg = session.createObjectMessage(body);
+            } catch (RuntimeException e) {
+                // Some providers serialize the body right away.
+                throw jmsException("Could not encode the payload: " + e, e);
+            }
+        } else {
+            MarshallingBuffer buffer = MarshallingBuffer.acquire();
+            try {
+                if (share) {
+                    try {
+                        classTables.serialize(body, peer, buffer);
+                    } catch (IOException e) {
+                        throw jmsException("Could not encode the payload: " + e, e);
+                    }
+                } else {
+                    serialize(serializer, body, buffer, "payload");
+                }
+                MarshallingBuffer data = compress(buffer);
+                BytesMessage bytesMessage = session.createBytesMessage();
+                data.writeTo(bytesMessage);
+                bytesMessage.setStringProperty(JMSRemoteSystem.MSG_PROP_ENCODING, data != buffer ? ENCODING_DEFLATE : ENCODING_JAVA);
+                if (share) {
+                    bytesMessage.setStringProperty(JMSRemoteSystem.MSG_PROP_SERIALIZER, SHARED_JAVA);
+                } else if (!java) {
+                    bytesMessage.setStringProperty(JMSRemoteSystem.MSG_PROP_SERIALIZER, serializer.getName());
+                }
+                msg = bytesMessage;
+            } finally {
+                buffer.release();
+            }
+        }
+
+        String acks = peer != null ? classTables.drainAcks(peer) : null;
+        if (acks != null) {
+            msg.setStringProperty(JMSRemoteSystem.MSG_PROP_DESCRIPTOR_ACKS, acks);
+        }
+        if (share || acks != null) {
+            msg.setStringProperty(JMSRemoteSystem.MSG_PROP_PEER, localId);
+        }
+        return msg;
+    }
+
+    /**
+     * Encodes a message in the binary envelope format.
+     * 
+     * @param body
+     *            The arguments of a request, or the result or exception of a
+     *            response.
+     * @param inReplyTo
+     *            The request message the body answers, if any.
+     */
+    BytesMessage encode(Session session, Envelope envelope, Object body, Message inReplyTo) throws JMSException {
+        Serializer serializer = serializerFor(inReplyTo);
+        MarshallingBuffer buffer = MarshallingBuffer.acquire();
+        try {
+            serialize(serializer, body, buffer, "envelope body");
+            MarshallingBuffer data = compress(buffer);
+            BytesMessage msg = session.createBytesMessage();
+            envelope.write(msg, data != buffer ? Envelope.FLAG_DEFLATED : 0, serializer.getName());
+            data.writeTo(msg);
+            return msg;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Decodes the body of an envelope message whose header has just been
+     * read, resolving its classes with the context class loader.
+     */
+    Object decode(BytesMessage msg, Envelope envelope) throws JMSException {
+        Serializer serializer = serializers.get(envelope.serializer);
+        if (serializer == null) {
+            throw new JMSException("Unknown serializer: " + envelope.serializer);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = msg.readBytes(buffer)) > 0;) {
+            baos.write(buffer, 0, count);
+        }
+        return deserialize(serializer, baos.toByteArray(), envelope.hasFlag(Envelope.FLAG_DEFLATED));
+    }
+
+    /**
+     * Decodes the body of a message, resolving its classes with the context
+     * class loader.
+     */
+    Object decode(Message msg) throws JMSException {
+        String peer = msg.getStringProperty(JMSRemoteSystem.MSG_PROP_PEER);
+        if (peer != null) {
+            String acks = msg.getStringProperty(JMSRemoteSystem.MSG_PROP_DESCRIPTOR_ACKS);
+            if (acks != null) {
+                classTables.ack(peer, acks);
+            }
+        }
+        if (msg instanceof ObjectMessage) {
+            return ((ObjectMessage) msg).getObject();
+        }
+        if (!(msg instanceof BytesMessage)) {
+            throw new JMSException("Unexpected message type: " + msg.getClass().getName());
+        }
+        String name = serializerName(msg);
+        Serializer serializer = serializers.get(name);
+        if (serializer == null && !(SHARED_JAVA.equals(name) && peer != null)) {
+            throw new JMSException("Unknown serializer: " + name);
+        }
+        BytesMessage bytesMessage = (BytesMessage) msg;
+        byte[] data = new byte[(int) bytesMessage.getBodyLength()];
+        bytesMessage.readBytes(data);
+        String encoding = msg.getStringProperty(JMSRemoteSystem.MSG_PROP_ENCODING);
+        if (!ENCODING_DEFLATE.equals(encoding) && !ENCODING_JAVA.equals(encoding)) {
+            throw new JMSException("Unknown payload encoding: " + encoding);
+        }
+        if (serializer == null) {
+            try {
+                if (ENCODING_DEFLATE.equals(encoding)) {
+                    data = inflate(data);
+                }
+                return classTables.deserialize(data, Thread.currentThread().getContextClassLoader(), peer);
+            } catch (IOException e) {
+                throw jmsException("Could not decode the payload: " + e, e);
+            } catch (ClassNotFoundException e) {
+                throw jmsException("Could not decode the payload: " + e, e);
+            }
+        }
+        return deserialize(serializer, data, ENCODING_DEFLATE.equals(encoding));
+    }
+
+    private static boolean isShared(Message msg) throws JMSException {
+        return msg != null && !(msg instanceof ObjectMessage) && SHARED_JAVA.equals(msg.getStringProperty(JMSRemoteSystem.MSG_PROP_SERIALIZER));
+    }
+
+    /**
+     * Selects the serializer of the request a message answers when it is
+     * registered, and the default one otherwise.
+     */
+    private Serializer serializerFor(Message inReplyTo) throws JMSException {
+        Serializer rc = null;
+        if (inReplyTo instanceof ObjectMessage) {
+            rc = serializers.get(JavaSerializer.NAME);
+        } else if (inReplyTo != null && Envelope.isEnvelope(inReplyTo)) {
+            rc = serializers.get(Envelope.read(inReplyTo).serializer);
+        } else if (isShared(inReplyTo)) {
+            rc = serializers.get(JavaSerializer.NAME);
+        } else if (inReplyTo != null) {
+            rc = serializers.get(serializerName(inReplyTo));
+        }
+        return rc != null ? rc : serializer;
+    }
+
+    /**
+     * Serializes a body the way {@link #encode} would, without building a
+     * message, to find out whether it can be encoded at all.
+     */
+    void checkEncodable(Serializable body, Message inReplyTo) throws JMSException {
+        MarshallingBuffer buffer = MarshallingBuffer.acquire();
+        try {
+            serialize(serializerFor(inReplyTo), body, buffer, "payload");
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static void serialize(Serializer serializer, Object body, MarshallingBuffer buffer, String what) throws JMSException {
+        try {
+            serializer.serialize(body, buffer);
+        } catch (IOException e) {
+            throw jmsException("Could not encode the " + what + ": " + e, e);
+        }
+    }
+
+    /**
+     * @return the buffer holding the deflated data, or the same buffer if it
+     *         is below the threshold or does not get any smaller.
+     */
+    private MarshallingBuffer compress(MarshallingBuffer buffer) throws JMSException {
+        if (threshold <= 0 || buffer.size() <= threshold) {
+            return buffer;
+        }
+        try {
+            MarshallingBuffer compressed = buffer.deflate(level);
+            if (compressed.size() >= buffer.size()) {
+                return buffer;
+            }
+            metrics.increment(Metrics.PAYLOADS_COMPRESSED);
+            return compressed;
+        } catch (IOException e) {
+            throw jmsException("Could not compress the payload: " + e, e);
+        }
+    }
+
+    private static Object deserialize(Serializer serializer, byte[] data, boolean deflated) throws JMSException {
+        try {
+            if (deflated) {
+                data = inflate(data);
+            }
+            return serializer.deserialize(new ByteArrayInputStream(data), Thread.currentThread().getContextClassLoader());
+        } catch (IOException e) {
+            throw jmsException("Could not decode the payload: " + e, e);
+        } catch (ClassNotFoundException e) {
+            throw jmsException("Could not decode the payload: " + e, e);
+        }
+    }
+
+    private static String serializerName(Message msg) throws JMSException {
+        String name = msg.getStringProperty(JMSRemoteSystem.MSG_PROP_SERIALIZER);
+        return name != null ? name : JavaSerializer.NAME;
+    }
+
+    static byte[] inflate(byte[] data) throws IOException {
+        InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            for (int count; (count = in.read(buffer)) >= 0;) {
+                baos.write(buffer, 0, count);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static JMSException jmsException(String message, Exception cause) {
+        JMSException rc = new JMSException(message);
+        rc.setLinkedException(cause);
+        rc.initCause(cause);
+        return rc;
+    }
+}
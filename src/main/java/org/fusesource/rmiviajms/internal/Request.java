@@ -25,12 +25,12 @@ import java.util.Arrays;
 final class Request implements Serializable {
     final long objectId;
     final long requestId;
-    final String methodSignature;
+    final long methodHash;
     final Object args[];
 
-    public Request(long objectId, String methodSignature, Object[] args, long requestId) {
+    public Request(long objectId, long methodHash, Object[] args, long requestId) {
         this.args = args;
-        this.methodSignature = methodSignature;
+        this.methodHash = methodHash;
         this.objectId = objectId;
         this.requestId = requestId;
     }
@@ -39,7 +39,7 @@ final class Request implements Serializable {
     public String toString() {
         return "Request{" +
                 "objectId=" + objectId +
-                ", methodSignature='" + methodSignature + '\'' +
+                ", methodHash=" + methodHash +
                 ", args=" + (args == null ? null : Arrays.asList(args)) +
                 ", requestId=" + requestId +
                 '}';
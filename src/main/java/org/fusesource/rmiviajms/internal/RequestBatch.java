@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Several requests sent to the same object in one message. They get
+ * dispatched in order, or concurrently if the batch is parallel.
+ */
+final class RequestBatch implements Serializable {
+    final Request requests[];
+    final boolean parallel;
+
+    public RequestBatch(Request[] requests, boolean parallel) {
+        this.requests = requests;
+        this.parallel = parallel;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestBatch{" +
+                "requests=" + Arrays.asList(requests) +
+                ", parallel=" + parallel +
+                '}';
+    }
+}
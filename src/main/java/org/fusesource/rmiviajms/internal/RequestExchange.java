@@ -18,12 +18,17 @@ package org.fusesource.rmiviajms.internal;
 
 import javax.jms.*;
 
+import org.fusesource.rmiviajms.RemoteFuture;
 import org.fusesource.rmiviajms.internal.JMSTemplate.TemplateClosedException;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.io.NotSerializableException;
 import java.rmi.RemoteException;
 import java.rmi.MarshalException;
@@ -33,7 +38,12 @@ import java.rmi.ServerError;
 /**
  * @author chirino
  */
-final class RequestExchange implements Runnable {
+final class RequestExchange implements Runnable, RemoteFuture<Object> {
+
+    /**
+     * Stands in for a response message which has not been decoded yet.
+     */
+    private static final Response UNDECODED = new Response(0, null, null);
 
     private final JMSRemoteRef remoteRef;
     private final boolean oneway;
@@ -44,29 +54,99 @@ final class RequestExchange implements Runnable {
     private final AtomicBoolean canceled = new AtomicBoolean(false);
     private final CountDownLatch completed = new CountDownLatch(1);
     private final AtomicReference<Response> response = new AtomicReference<Response>();
+    private final Object decodeMutex = new Object();
+    private Message responseMessage;
+    private Envelope responseEnvelope;
+    private Response decoded;
+    private ArrayList<Listener<Object>> listeners;
+    private volatile TimerWheel.Timeout timeoutTask;
     private JMSRemoteSystem remoteSystem;
+    private JMSTemplate sendTemplate;
+    private volatile RequestWindow window;
+    private volatile CircuitBreaker circuitBreaker;
+    private int circuitGeneration;
+    private int credits;
+    private CreditWindow creditWindow;
 
-    public RequestExchange(JMSRemoteSystem remoteSystem, JMSRemoteRef remoteRef, String signature, Object[] params, boolean oneway, long timeout, int deliveryMode, int priority) {
+    public RequestExchange(JMSRemoteSystem remoteSystem, JMSRemoteRef remoteRef, long methodHash, Object[] params, boolean oneway, long timeout, int deliveryMode, int priority) {
         this.remoteSystem = remoteSystem;
         this.remoteRef = remoteRef;
         this.oneway = oneway;
         this.timeout = timeout;
         this.deliveryMode = deliveryMode;
         this.priority = priority;
-        this.request = new Request(remoteRef.getObjectId(), signature, params, remoteSystem.requestCounter.incrementAndGet());
+        this.request = new Request(remoteRef.getObjectId(), methodHash, params, remoteSystem.requestCounter.incrementAndGet());
+    }
+
+    Request getRequest() {
+        return request;
+    }
+
+    JMSRemoteRef getRemoteRef() {
+        return remoteRef;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Hands the request deadline to the remote system's timer which completes
+     * the exchange with a timeout exception and drops it from the pending
+     * requests if no response arrives in time.
+     */
+    void scheduleTimeout() {
+        scheduleTimeout(0);
+    }
+
+    /**
+     * @param elapsed
+     *            How much of the timeout was already spent before the request
+     *            could be sent.
+     */
+    void scheduleTimeout(long elapsed) {
+        if (timeout > 0 && timeout < Long.MAX_VALUE) {
+            timeoutTask = remoteSystem.getTimer().schedule(new Runnable() {
+                public void run() {
+                    cancel();
+                    setResponse(new Response(request.requestId, null, new RemoteException("request timeout")), true);
+                }
+            }, Math.max(timeout - elapsed, 0), TimeUnit.MILLISECONDS);
+        }
     }
 
     public Object getResult() throws Throwable {
-        if (timeout > 0) {
-            if (!completed.await(timeout, TimeUnit.MILLISECONDS)) {
-                canceled.set(true);
-                throw new RemoteException("request tmeout");
+        completed.await();
+        return toResult(getResponse());
+    }
+
+    /**
+     * @return the response, decoding its message the first time.
+     */
+    private Response getResponse() {
+        Response r = response.get();
+        if (r != UNDECODED) {
+            return r;
+        }
+        synchronized (decodeMutex) {
+            if (decoded == null) {
+                decoded = remoteSystem.decodeResponse(this, responseMessage, responseEnvelope);
+                responseMessage = null;
+                responseEnvelope = null;
             }
-        } else {
-            completed.await();
+            return decoded;
         }
+    }
 
-        Response r = response.get();
+    private static Object toResult(Response r) throws Throwable {
         if (r.exception != null) {
             if (r.fromRemote) {
                 // We may need to wrap the exceptions a bit..
@@ -78,12 +158,151 @@ final class RequestExchange implements Runnable {
             }
             throw r.exception;
         }
+        if (r.result instanceof StreamConsumer && ((StreamConsumer) r.result).isBytes()) {
+            return ((StreamConsumer) r.result).readBytes();
+        }
         return r.result;
     }
 
-    public void setResponse(Response response) {
-        this.response.compareAndSet(null, response);
-        this.completed.countDown();
+    ///////////////////////////////////////////////////////////////////
+    // RemoteFuture interface used for asynchronous invocations.
+    ///////////////////////////////////////////////////////////////////
+
+    public Object get() throws InterruptedException, ExecutionException {
+        completed.await();
+        return getCompletedResult();
+    }
+
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!completed.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getCompletedResult();
+    }
+
+    private Object getCompletedResult() throws ExecutionException {
+        Response r = getResponse();
+        if (r.exception instanceof CancellationException) {
+            throw (CancellationException) r.exception;
+        }
+        try {
+            return toResult(r);
+        } catch (Throwable e) {
+            throw new ExecutionException(e);
+        }
+    }
+
+    public boolean isDone() {
+        return completed.getCount() == 0;
+    }
+
+    public boolean isCancelled() {
+        Response r = response.get();
+        return r != null && r.exception instanceof CancellationException;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        cancel();
+        setResponse(new Response(request.requestId, null, new CancellationException()));
+        return isCancelled();
+    }
+
+    public void addListener(Listener<Object> listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Listener<Object>>(2);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    private void notifyListeners() {
+        final ArrayList<Listener<Object>> l;
+        synchronized (this) {
+            l = listeners;
+            listeners = null;
+        }
+        if (l != null) {
+            remoteSystem.getDispatchThreads().execute(new Runnable() {
+                public void run() {
+                    for (Listener<Object> listener : l) {
+                        try {
+                            listener.onComplete(RequestExchange.this);
+                        } catch (Throwable thrown) {
+                            thrown.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Completes the exchange with a response message, which is decoded by the
+     * first thread asking for the result so that the receive thread does not
+     * have to.
+     * 
+     * @param envelope
+     *            The header of the message if it is in the envelope format,
+     *            already read.
+     */
+    void setResponse(Message msg, Envelope envelope) {
+        responseMessage = msg;
+        responseEnvelope = envelope;
+        if (!setResponse(UNDECODED)) {
+            responseMessage = null;
+            responseEnvelope = null;
+        }
+    }
+
+    /**
+     * @return false if the exchange was already completed.
+     */
+    public boolean setResponse(Response response) {
+        return setResponse(response, false);
+    }
+
+    /**
+     * @param destinationFailure
+     *            Whether the response is a timeout or send failure, the only
+     *            failures counting against the circuit breaker. Other local
+     *            failures, like the arguments not being serializable, say
+     *            nothing about the destination.
+     * @return false if the exchange was already completed.
+     */
+    boolean setResponse(Response response, boolean destinationFailure) {
+        if (this.response.compareAndSet(null, response)) {
+            TimerWheel.Timeout t = timeoutTask;
+            if (t != null) {
+                t.cancel();
+            }
+            // Recorded before waking the caller so that its next call sees the outcome.
+            CircuitBreaker cb = circuitBreaker;
+            if (cb != null) {
+                if (response.exception == null || response.fromRemote || destinationFailure) {
+                    cb.record(circuitGeneration, destinationFailure);
+                } else {
+                    cb.cancel(circuitGeneration);
+                }
+            }
+            synchronized (this) {
+                this.completed.countDown();
+            }
+            RequestWindow w = window;
+            if (w != null) {
+                w.release(this);
+            }
+            notifyListeners();
+            return true;
+        }
+        return false;
     }
 
     public void cancel() {
@@ -91,45 +310,140 @@ final class RequestExchange implements Runnable {
         remoteSystem.requests.remove(request.requestId);
     }
 
+    /**
+     * Sets the request window the exchange takes a slot of, which it gives
+     * back once it completes.
+     */
+    void setWindow(RequestWindow window) {
+        this.window = window;
+    }
+
+    /**
+     * Sets the circuit breaker the outcome of the request gets recorded to.
+     */
+    void setCircuitBreaker(CircuitBreaker circuitBreaker, int generation) {
+        this.circuitGeneration = generation;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Marks a one way request as flow controlled, the remote system grants
+     * credits back to this system once it has executed it.
+     * 
+     * @param window
+     *            The client's credit window the request took a credit of.
+     */
+    void setCredits(CreditWindow window) {
+        this.creditWindow = window;
+        this.credits = window.size;
+    }
+
+    /**
+     * Gives back the credit of a one way request which could not be sent.
+     */
+    void returnCredit() {
+        CreditWindow w = creditWindow;
+        if (w != null) {
+            creditWindow = null;
+            w.grant(1);
+        }
+    }
+
+    int getCredits() {
+        return credits;
+    }
+
+    /**
+     * Registers the exchange with the pending requests so that the response
+     * can find it.
+     * 
+     * @return false if the exchange got canceled (or timed out) while waiting
+     *         to be sent.
+     */
+    boolean register() {
+        remoteSystem.requests.put(request.requestId, this);
+        if (canceled.get()) {
+            remoteSystem.requests.remove(request.requestId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the request from the given lane's thread using its session.
+     */
+    void sendVia(SenderLane lane) {
+        this.sendTemplate = lane.template;
+        lane.execute(this);
+    }
+
+    /**
+     * Sends the request in the calling thread using the given thread bound
+     * template.
+     */
+    void sendDirect(JMSTemplate template) {
+        this.sendTemplate = template;
+        run();
+    }
+
+    private Message encode(Session session) throws JMSException {
+        if (remoteSystem.binaryEnvelope && credits == 0) {
+            Message msg = remoteSystem.getCodec().encode(session, Envelope.request(request, oneway, timeout), request.args, null);
+            if (!oneway) {
+                msg.setJMSReplyTo(sendTemplate.getLocalSystemQueue());
+            }
+            return msg;
+        }
+        Message msg = remoteSystem.getCodec().encode(session, request, null, remoteRef.getDestination());
+        msg.setLongProperty(JMSRemoteSystem.MSG_PROP_OBJECT, request.objectId);
+        if (oneway) {
+            msg.setJMSType(JMSRemoteSystem.MSG_TYPE_ONEWAY);
+            if (credits > 0) {
+                msg.setIntProperty(JMSRemoteSystem.MSG_PROP_CREDIT, credits);
+                msg.setJMSReplyTo(sendTemplate.getLocalSystemQueue());
+            }
+        } else {
+            msg.setJMSType(JMSRemoteSystem.MSG_TYPE_REQUEST);
+            //Set the request id in the properties, so that error response can be returned
+            //if there is an error unmarshalling the request at the other end:
+            msg.setLongProperty(JMSRemoteSystem.MSG_PROP_REQUEST, request.requestId);
+            msg.setJMSReplyTo(sendTemplate.getLocalSystemQueue());
+        }
+        return msg;
+    }
+
     public void run() {
-        if (canceled.get())
+        if (canceled.get()) {
+            returnCredit();
             return;
+        }
 
-        ObjectMessage msg = null;
-        if (!oneway) {
-            remoteSystem.requests.put(request.requestId, this);
+        Message msg = null;
+        Retry retry = null;
+        if (!oneway && !register()) {
+            return;
         }
         try {
             while (!canceled.get() && remoteSystem.running.get()) {
                 try {
                     if (msg == null) {
-                        // To go faster most JMS providers should let use do the following
-                        // in original thread.. but to stay true to the spec, we are doing
-                        // it in the sending thread to avoid multi-threaded session access.
-                        Session session = remoteSystem.sendTemplate.getSession();
-                        msg = session.createObjectMessage();
-
+                        // To stay true to the spec, we only ever use the template's session
+                        // from one thread: either the sender lane's or, in direct send mode,
+                        // the calling thread which owns the template.
+                        Session session = sendTemplate.getSession();
                         try {
-                            msg.setObject(request);
-                            msg.setLongProperty(JMSRemoteSystem.MSG_PROP_OBJECT, request.objectId);
-                            if (oneway) {
-                                msg.setJMSType(JMSRemoteSystem.MSG_TYPE_ONEWAY);
-                            } else {
-                                msg.setJMSType(JMSRemoteSystem.MSG_TYPE_REQUEST);
-                                //Set the request id in the properties, so that error response can be returned
-                                //if there is an error unmarshalling the request at the other end:
-                                msg.setLongProperty(JMSRemoteSystem.MSG_PROP_REQUEST, request.requestId);
-                                msg.setJMSReplyTo(remoteSystem.sendTemplate.getLocalSystemQueue());
-                            }
+                            msg = encode(session);
                         } catch (JMSException e) {
                             throw new MarshalException("Could not marshall request: " + e.getMessage(), e);
                         }
                     }
 
                     Destination destination = remoteRef.getDestination();
-                    MessageProducer producer = remoteSystem.sendTemplate.getMessageProducer();
+                    MessageProducer producer = sendTemplate.getMessageProducer();
 
                     producer.send(destination, msg, deliveryMode, priority, timeout);
+                    // The remote system grants the credit back now.
+                    creditWindow = null;
                     return;
 
                 } catch (RemoteException e) {
@@ -144,13 +458,21 @@ final class RequestExchange implements Runnable {
                         setResponse(new Response(request.requestId, null, e.getCause()));
                         return;
                     }
-                    e.printStackTrace();
-                    remoteSystem.sendTemplate.reset();
-                    // TODO: should we sleep?
+                    if (retry == null) {
+                        retry = new Retry(remoteSystem);
+                    }
+                    if (!retry.retry(sendTemplate, e)) {
+                        setResponse(new Response(request.requestId, null, new RemoteException("Could not send request", e)), true);
+                        return;
+                    }
                 }
             }
+            if (!canceled.get()) {
+                setResponse(new Response(request.requestId, null, new RemoteException("RemoteSystem reset")));
+            }
         } finally {
             if (oneway) {
+                returnCredit();
                 // Lests the calling thread continue.. (since it won't be getting a response).
                 setResponse(new Response(0, null, null));
             }
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Destination;
+
+import org.fusesource.rmiviajms.RequestWindowFullException;
+import org.fusesource.rmiviajms.RequestWindowStrategy;
+
+/**
+ * Limits the number of requests outstanding toward one destination. A request
+ * holds a slot of the window from the time it is allowed to be sent until it
+ * completes.
+ */
+final class RequestWindow {
+
+    private final JMSRemoteSystem remoteSystem;
+    private final Destination destination;
+    private final int size;
+    private final RequestWindowStrategy strategy;
+    private final int queueSize;
+    private final LinkedList<RequestExchange> queue = new LinkedList<RequestExchange>();
+    private boolean closed;
+    private int used;
+
+    RequestWindow(JMSRemoteSystem remoteSystem, Destination destination, int size, RequestWindowStrategy strategy, int queueSize) {
+        this.remoteSystem = remoteSystem;
+        this.destination = destination;
+        this.size = size;
+        this.strategy = strategy;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Takes a slot of the window for the exchange.
+     * 
+     * @param timeout
+     *            How long to wait for a slot with the block strategy.
+     * @return true if the exchange can be sent right away, false if it got
+     *         queued and will be sent once a slot frees up.
+     * @throws RequestWindowFullException
+     *             If no slot could be taken.
+     */
+    synchronized boolean acquire(RequestExchange exchange, long timeout) throws RemoteException {
+        if (closed) {
+            throw closedException();
+        }
+        if (used < size) {
+            used++;
+            remoteSystem.metrics.counter(Metrics.WINDOW_INFLIGHT).incrementAndGet();
+            return true;
+        }
+        switch (strategy) {
+        case BLOCK:
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                while (used >= size) {
+                    if (closed) {
+                        throw closedException();
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (timeout <= 0 || timeout == Long.MAX_VALUE) {
+                        wait();
+                    } else if (remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } else {
+                        throw rejected();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for the request window of " + destination, e);
+            }
+            used++;
+            remoteSystem.metrics.counter(Metrics.WINDOW_INFLIGHT).incrementAndGet();
+            return true;
+        case QUEUE:
+            if (queue.size() < queueSize) {
+                queue.add(exchange);
+                remoteSystem.metrics.counter(Metrics.WINDOW_QUEUED).incrementAndGet();
+                return false;
+            }
+            throw rejected();
+        default:
+            throw rejected();
+        }
+    }
+
+    /**
+     * Called once the exchange has completed. Its slot is handed over to the
+     * next queued exchange if there is one.
+     */
+    void release(RequestExchange exchange) {
+        RequestExchange next;
+        synchronized (this) {
+            if (queue.remove(exchange)) {
+                // completed (timed out) while queued: it did not hold a slot.
+                remoteSystem.metrics.counter(Metrics.WINDOW_QUEUED).decrementAndGet();
+                return;
+            }
+            next = queue.poll();
+            if (next == null) {
+                used--;
+                remoteSystem.metrics.counter(Metrics.WINDOW_INFLIGHT).decrementAndGet();
+                notify();
+                return;
+            }
+            remoteSystem.metrics.counter(Metrics.WINDOW_QUEUED).decrementAndGet();
+        }
+        remoteSystem.sendQueued(next);
+    }
+
+    /**
+     * Refuses any further exchange and wakes up the callers blocked on the
+     * window.
+     * 
+     * @return the exchanges which were queued, they will not be sent.
+     */
+    synchronized List<RequestExchange> close() {
+        closed = true;
+        ArrayList<RequestExchange> rc = new ArrayList<RequestExchange>(queue);
+        queue.clear();
+        notifyAll();
+        return rc;
+    }
+
+    private RemoteException closedException() {
+        return new RemoteException("RemoteSystem reset");
+    }
+
+    private RequestWindowFullException rejected() {
+        remoteSystem.metrics.increment(Metrics.WINDOW_REJECTED);
+        return new RequestWindowFullException("More than " + size + " requests outstanding toward " + destination);
+    }
+}
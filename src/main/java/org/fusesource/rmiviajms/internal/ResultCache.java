@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the results of one {@link org.fusesource.rmiviajms.Cacheable}
+ * method. Entries are evicted least recently used first once the cache is
+ * full, and dropped when found expired.
+ */
+final class ResultCache {
+
+    private static final class CachedResult {
+        final Object value;
+        final long expires;
+
+        CachedResult(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final long ttl;
+    private final Metrics metrics;
+    private final LinkedHashMap<InvocationKey, CachedResult> entries;
+
+    ResultCache(final int maxEntries, long ttl, final Metrics metrics) {
+        this.ttl = ttl;
+        this.metrics = metrics;
+        this.entries = new LinkedHashMap<InvocationKey, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InvocationKey, CachedResult> eldest) {
+                if (size() > maxEntries) {
+                    metrics.increment(Metrics.CACHE_EVICTIONS);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returned by {@link #get(InvocationKey)} when nothing is cached for the
+     * key, since null is a valid result.
+     */
+    static final Object MISS = new Object();
+
+    /**
+     * @return the cached result or {@link #MISS}.
+     */
+    synchronized Object get(InvocationKey key) {
+        CachedResult entry = entries.get(key);
+        if (entry != null && entry.expires != 0 && entry.expires <= System.currentTimeMillis()) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            metrics.increment(Metrics.CACHE_MISSES);
+            return MISS;
+        }
+        metrics.increment(Metrics.CACHE_HITS);
+        return entry.value;
+    }
+
+    synchronized void put(InvocationKey key, Object value) {
+        long expires = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+        entries.put(key, new CachedResult(value, expires));
+    }
+
+    /**
+     * Drops the results cached for the given target object.
+     */
+    synchronized void invalidate(Object targetKey) {
+        for (Iterator<InvocationKey> i = entries.keySet().iterator(); i.hasNext();) {
+            if (i.next().getTargetKey().equals(targetKey)) {
+                i.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
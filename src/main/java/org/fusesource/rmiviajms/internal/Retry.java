@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import org.fusesource.rmiviajms.RetryPolicy;
+
+/**
+ * Tracks the attempts made to send one message and applies the remote
+ * system's {@link RetryPolicy} after each failure.
+ */
+final class Retry {
+
+    private final JMSRemoteSystem remoteSystem;
+    private final RetryPolicy policy;
+    private final long start = System.currentTimeMillis();
+    private int attempts;
+
+    Retry(JMSRemoteSystem remoteSystem) {
+        this.remoteSystem = remoteSystem;
+        this.policy = remoteSystem.getRetryPolicy();
+    }
+
+    /**
+     * Called after a failed attempt. Waits for the delay given by the policy
+     * and re-creates the template's connection.
+     * 
+     * @return false if the send should be given up.
+     */
+    boolean retry(JMSTemplate template, Exception cause) {
+        attempts++;
+        long delay = policy.nextDelay(attempts, System.currentTimeMillis() - start);
+        if (delay < 0 || !remoteSystem.running.get()) {
+            remoteSystem.metrics.increment(Metrics.SEND_FAILURES);
+            return false;
+        }
+        // Only report the first failure, the following ones most likely have the same cause.
+        if (attempts == 1) {
+            cause.printStackTrace();
+        }
+        remoteSystem.metrics.increment(Metrics.SEND_RETRIES);
+        template.reset();
+        remoteSystem.metrics.increment(Metrics.RECONNECTS);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
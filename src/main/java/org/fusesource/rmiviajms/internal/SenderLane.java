@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sender thread along with the JMS session it owns. Since a JMS session
+ * may only be used by one thread at a time, all the sends done with the
+ * lane's template are done by the lane's thread.
+ */
+final class SenderLane {
+
+    final JMSTemplate template;
+    private final ExecutorService thread;
+    private final AtomicLong tasks;
+
+    SenderLane(JMSTemplate template, ExecutorService thread, AtomicLong tasks) {
+        this.template = template;
+        this.thread = thread;
+        this.tasks = tasks;
+    }
+
+    void execute(Runnable task) {
+        tasks.incrementAndGet();
+        thread.execute(task);
+    }
+
+    void close() throws InterruptedException {
+        template.close();
+        thread.shutdown();
+        thread.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
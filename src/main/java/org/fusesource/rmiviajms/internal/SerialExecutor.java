@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on the threads
+ * of another executor.
+ */
+final class SerialExecutor implements Executor {
+
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private final Executor executor;
+    private boolean active;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void execute(final Runnable task) {
+        Runnable next;
+        synchronized (tasks) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        runNext();
+                    }
+                }
+            });
+            if (active) {
+                return;
+            }
+            active = true;
+            next = tasks.poll();
+        }
+        executor.execute(next);
+    }
+
+    private void runNext() {
+        Runnable next;
+        synchronized (tasks) {
+            next = tasks.poll();
+            if (next == null) {
+                active = false;
+                return;
+            }
+        }
+        executor.execute(next);
+    }
+}
@@ -19,15 +19,24 @@ package org.fusesource.rmiviajms.internal;
 import java.rmi.*;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
- * Every exported object gets one of these. It keeps a map that lets use convert
- * the messages into Method objects we can invoke.
+ * Every exported object gets one of these. It keeps the sorted method hashes
+ * that lets use convert the messages into Method objects we can invoke.
  */
 class Skeleton {
     final Object target;
-    private final HashMap<String, Method> methods = new HashMap<String, Method>();
+    final JMSRemoteRef ref;
+    private final long[] methodHashes;
+    private final Method[] methods;
     private final JMSRemoteSystem remoteSystem;
 
     public ClassLoader getTargetClassLoader() {
@@ -36,6 +45,8 @@ class Skeleton {
 
     Skeleton(JMSRemoteSystem remoteSystem, JMSRemoteRef ref, Object target) {
         this.remoteSystem = remoteSystem;
+        this.ref = ref;
+        TreeMap<Long, Method> methods = new TreeMap<Long, Method>();
         try {
             this.target = target;
             Class<?> clazz = this.target.getClass();
@@ -46,57 +57,123 @@ class Skeleton {
                     }
                     //                    System.out.println("Class: " + clazz.getName() + " adding method: " + method.toGenericString());
 
-                    String sig = JMSRemoteSystem.signature(method);
-                    methods.put(sig, clazz.getMethod(method.getName(), method.getParameterTypes()));
+                    addMethod(methods, clazz.getMethod(method.getName(), method.getParameterTypes()));
                 }
             } else {
                 for (Class<?> intf : ref.getInterfaces()) {
                     for (Method method : intf.getMethods()) {
                         //                        System.out.println("Class: " + clazz.getName() + " adding method: " + method.toGenericString());
 
-                        String sig = JMSRemoteSystem.signature(method);
-                        methods.put(sig, intf.getMethod(method.getName(), method.getParameterTypes()));
+                        addMethod(methods, intf.getMethod(method.getName(), method.getParameterTypes()));
                     }
                 }
             }
         } catch (NoSuchMethodException e) {
             throw new IllegalArgumentException("target should implement all of the interfaces provided", e);
         }
+        this.methodHashes = new long[methods.size()];
+        this.methods = new Method[methods.size()];
+        int i = 0;
+        for (Map.Entry<Long, Method> entry : methods.entrySet()) {
+            methodHashes[i] = entry.getKey();
+            this.methods[i++] = entry.getValue();
+        }
+    }
+
+    private static void addMethod(TreeMap<Long, Method> methods, Method method) {
+        String signature = JMSRemoteSystem.signature(method);
+        Method previous = methods.put(JMSRemoteSystem.methodHash(signature), method);
+        if (previous != null && !signature.equals(JMSRemoteSystem.signature(previous))) {
+            throw new IllegalArgumentException("The methods " + signature + " and " + JMSRemoteSystem.signature(previous) + " have the same hash");
+        }
     }
 
     public Response invoke(Request request) {
         //Invoke in the target's classloader:
         ClassLoader original = Thread.currentThread().getContextClassLoader();
         Thread.currentThread().setContextClassLoader(getTargetClassLoader());
+        List<StreamConsumer> streams = null;
         try {
-            Object result = invoke(request.methodSignature, request.args);
+            streams = remoteSystem.receiveArgumentStreams(request.args, getTargetClassLoader());
+            Object result = invoke(request.methodHash, request.args);
             return new Response(request.requestId, result, null);
         } catch (Throwable e) {
             return new Response(request.requestId, null, e);
         } finally {
+            if (streams != null) {
+                for (StreamConsumer stream : streams) {
+                    stream.close();
+                }
+            }
             Thread.currentThread().setContextClassLoader(original);
         }
     }
 
-    private Object invoke(String signature, Object[] args) throws Throwable {
+    /**
+     * Invokes the requests of a batch one after the other, or concurrently
+     * using the dispatch threads if the batch is parallel.
+     */
+    public Response[] invoke(RequestBatch batch) {
+        Response responses[] = new Response[batch.requests.length];
+        if (batch.parallel && responses.length > 1) {
+            ArrayList<Future<Response>> futures = new ArrayList<Future<Response>>(responses.length);
+            for (final Request request : batch.requests) {
+                futures.add(remoteSystem.getDispatchThreads().submit(new Callable<Response>() {
+                    public Response call() {
+                        return invoke(request);
+                    }
+                }));
+            }
+            for (int i = 0; i < responses.length; i++) {
+                try {
+                    responses[i] = futures.get(i).get();
+                } catch (Exception e) {
+                    responses[i] = new Response(batch.requests[i].requestId, null, e);
+                }
+            }
+        } else {
+            for (int i = 0; i < responses.length; i++) {
+                responses[i] = invoke(batch.requests[i]);
+            }
+        }
+        return responses;
+    }
+
+    private Object invoke(long methodHash, Object[] args) throws Throwable {
         //Invoke in the target's classloader:
-        Method method = methods.get(signature);
-        if (method == null) {
-            throw new UnmarshalException("The remote object does contain the method: " + signature);
+        int index = Arrays.binarySearch(methodHashes, methodHash);
+        if (index < 0) {
+            throw new UnmarshalException("The remote object does not contain the method with hash: " + methodHash);
         }
+        Method method = methods[index];
         ClassLoader original = Thread.currentThread().getContextClassLoader();
         Thread.currentThread().setContextClassLoader(getTargetClassLoader());
+        Object result;
         try {
-            return method.invoke(target, args);
+            result = method.invoke(target, args);
         } catch (InvocationTargetException e) {
             throw e.getTargetException();
         } catch (IllegalAccessException e) {
-            throw new UnmarshalException("Could not invoke method: " + signature, e);
+            throw new UnmarshalException("Could not invoke method: " + JMSRemoteSystem.signature(method), e);
         } catch (Exception e) {
             throw new UnexpectedException(e.toString(), e);
         } finally {
             Thread.currentThread().setContextClassLoader(original);
         }
+        if (result instanceof Future && JMSRemoteRef.isAsync(method)) {
+            // Asynchronous methods: send back the value the future resolves to.
+            try {
+                result = ((Future<?>) result).get();
+            } catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+        if (result != null && JMSRemoteRef.isStreamed(method)
+                || result instanceof byte[] && remoteSystem.streamBytesThreshold > 0 && ((byte[]) result).length > remoteSystem.streamBytesThreshold) {
+            // Sent back a chunk at a time once the response is sent.
+            result = new StreamSource(result, getTargetClassLoader());
+        }
+        return result;
     }
 
 }
\ No newline at end of file
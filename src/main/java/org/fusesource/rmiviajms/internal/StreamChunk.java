@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.Serializable;
+
+import javax.jms.Destination;
+
+/**
+ * A sequence of elements of a stream. The first chunk stands in for the
+ * streamed result or argument, the following ones are sent on demand of the
+ * consumer.
+ */
+final class StreamChunk implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final long streamId;
+    /**
+     * Where to send the demand for more chunks. Only set on the first chunk.
+     */
+    final Destination source;
+    /**
+     * One of the {@link StreamSource} kinds.
+     */
+    final int kind;
+    final Object[] elements;
+    final boolean last;
+    /**
+     * What the iteration failed with after the elements, if it did.
+     */
+    final Throwable exception;
+
+    StreamChunk(long streamId, Destination source, int kind, Object[] elements, boolean last, Throwable exception) {
+        this.streamId = streamId;
+        this.source = source;
+        this.kind = kind;
+        this.elements = elements;
+        this.last = last;
+        this.exception = exception;
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import javax.jms.Destination;
+
+/**
+ * The receiving side of a stream. The elements of a chunk can be used while
+ * the next chunks are still being produced: the consumer keeps up to the
+ * prefetch count of chunks buffered or on their way, and asks for one more
+ * each time it starts on a buffered chunk.
+ * <p>
+ * Errors are thrown from {@link #hasNext()} and {@link #next()} as
+ * {@link RuntimeException}s, remote errors wrapping a {@link RemoteException},
+ * and as {@link IOException}s by the {@link #asInputStream() input stream}. A
+ * stream which is not consumed to the end should be closed so that the
+ * producer can release it.
+ */
+final class StreamConsumer implements Iterator<Object>, Closeable {
+
+    private final JMSRemoteSystem remoteSystem;
+    private final long key;
+    private final long streamId;
+    private final Destination source;
+    private final int kind;
+    private final ClassLoader classLoader;
+    private final long timeout;
+    private final int prefetch;
+    private final LinkedList<StreamChunk> chunks = new LinkedList<StreamChunk>();
+    private Object[] elements;
+    private int index;
+    private Throwable failure;
+    private boolean last;
+    private boolean closed;
+    private byte[] bytes;
+
+    /**
+     * @param key
+     *            Identifies the stream among the ones consumed by this system.
+     * @param timeout
+     *            How long to wait for a chunk, in milliseconds.
+     */
+    StreamConsumer(JMSRemoteSystem remoteSystem, long key, StreamChunk first, ClassLoader classLoader, long timeout, int prefetch) {
+        this.remoteSystem = remoteSystem;
+        this.key = key;
+        this.streamId = first.streamId;
+        this.source = first.source;
+        this.kind = first.kind;
+        this.classLoader = classLoader;
+        this.timeout = timeout;
+        this.prefetch = Math.max(1, prefetch);
+        take(first);
+    }
+
+    ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    boolean isLast() {
+        return last;
+    }
+
+    /**
+     * @return what the consumer stands in for: an {@link Iterator}, a single
+     *         use {@link Iterable}, an {@link InputStream}, or the consumer
+     *         itself for byte arrays, which get reassembled by
+     *         {@link #readBytes()}.
+     */
+    Object getValue() {
+        switch (kind) {
+        case StreamSource.ITERABLE:
+            return asIterable();
+        case StreamSource.INPUT_STREAM:
+            return asInputStream();
+        default:
+            return this;
+        }
+    }
+
+    boolean isBytes() {
+        return kind == StreamSource.BYTES;
+    }
+
+    /**
+     * Asks for the first chunks following the first one.
+     */
+    void open() {
+        remoteSystem.sendStreamDemand(source, streamId, prefetch, key);
+    }
+
+    /**
+     * Called by the receive thread when a chunk arrives.
+     */
+    synchronized void onChunk(StreamChunk chunk) {
+        chunks.add(chunk);
+        notifyAll();
+    }
+
+    /**
+     * Fails the stream once the elements already received have been used.
+     */
+    void fail(Throwable exception) {
+        onChunk(new StreamChunk(streamId, null, kind, new Object[0], true, exception));
+    }
+
+    public synchronized boolean hasNext() {
+        try {
+            return fetch();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return nextElement();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Releases the stream on the producer side if it has not been consumed to
+     * the end.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        elements = null;
+        chunks.clear();
+        if (!last) {
+            remoteSystem.streamConsumers.remove(key);
+            remoteSystem.sendStreamDemand(source, streamId, 0, key);
+        }
+    }
+
+    /**
+     * @return the bytes of a streamed byte array, waiting for all of them the
+     *         first time.
+     */
+    synchronized byte[] readBytes() throws Throwable {
+        if (bytes == null) {
+            ByteArrayOutputStream rc = new ByteArrayOutputStream();
+            while (fetch()) {
+                rc.write((byte[]) nextElement());
+            }
+            bytes = rc.toByteArray();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return a view of the stream which can be iterated once.
+     */
+    Iterable<Object> asIterable() {
+        return new Iterable<Object>() {
+            private boolean iterated;
+
+            public synchronized Iterator<Object> iterator() {
+                if (iterated) {
+                    throw new IllegalStateException("A streamed result can only be iterated once");
+                }
+                iterated = true;
+                return StreamConsumer.this;
+            }
+        };
+    }
+
+    /**
+     * @return a view of a binary stream as an input stream.
+     */
+    InputStream asInputStream() {
+        return new InputStream() {
+            private byte[] block;
+            private int pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (block == null || pos >= block.length) {
+                    if (!nextBlock()) {
+                        return -1;
+                    }
+                }
+                int count = Math.min(len, block.length - pos);
+                System.arraycopy(block, pos, b, off, count);
+                pos += count;
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return block == null ? 0 : block.length - pos;
+            }
+
+            @Override
+            public void close() {
+                StreamConsumer.this.close();
+            }
+
+            private boolean nextBlock() throws IOException {
+                synchronized (StreamConsumer.this) {
+                    try {
+                        if (!fetch()) {
+                            return false;
+                        }
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        IOException rc = new IOException(e.toString());
+                        rc.initCause(e);
+                        throw rc;
+                    }
+                    block = (byte[]) nextElement();
+                    pos = 0;
+                    return true;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return true once an element is available, false at the end of the
+     *         stream.
+     * @throws Throwable
+     *             What the stream failed with.
+     */
+    private boolean fetch() throws Throwable {
+        while (true) {
+            if (elements != null && index < elements.length) {
+                return true;
+            }
+            if (failure != null) {
+                Throwable thrown = failure;
+                failure = null;
+                throw thrown;
+            }
+            if (last || closed) {
+                return false;
+            }
+            take(poll());
+            if (!last) {
+                remoteSystem.sendStreamDemand(source, streamId, 1, key);
+            }
+        }
+    }
+
+    private Object nextElement() {
+        Object rc = elements[index];
+        elements[index++] = null;
+        return rc;
+    }
+
+    private void take(StreamChunk chunk) {
+        elements = chunk.elements;
+        index = 0;
+        failure = chunk.exception;
+        last = chunk.last;
+        if (last) {
+            remoteSystem.streamConsumers.remove(key);
+        }
+    }
+
+    private StreamChunk poll() throws RemoteException {
+        long deadline = timeout > 0 && timeout < Long.MAX_VALUE ? System.currentTimeMillis() + timeout : 0;
+        while (chunks.isEmpty()) {
+            try {
+                if (deadline == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        close();
+                        throw new RemoteException("stream timeout");
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for the stream", e);
+            }
+        }
+        return chunks.removeFirst();
+    }
+}
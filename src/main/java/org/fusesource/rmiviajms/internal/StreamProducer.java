@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Destination;
+
+/**
+ * Iterates a stream source on behalf of its consumer, which is the client for
+ * streamed results and the server for streamed arguments. Chunks are only
+ * produced when the consumer asks for them, so the producer never runs ahead
+ * of the consumer's prefetch. Streams the consumer stops asking for are
+ * closed once idle for too long.
+ */
+final class StreamProducer {
+
+    final long streamId;
+    private final JMSRemoteSystem remoteSystem;
+    private final StreamSource source;
+    private final int deliveryMode;
+    private final int priority;
+    private final int chunkSize;
+    private final int blockSize;
+    private final long idleTimeout;
+    private Iterator<?> iterator;
+    private boolean done;
+    private TimerWheel.Timeout idleTask;
+
+    /**
+     * @param chunkSize
+     *            The number of elements per chunk.
+     * @param blockSize
+     *            The number of bytes per chunk of binary sources.
+     */
+    StreamProducer(JMSRemoteSystem remoteSystem, long streamId, StreamSource source, int deliveryMode, int priority, int chunkSize, int blockSize, long idleTimeout) {
+        this.remoteSystem = remoteSystem;
+        this.streamId = streamId;
+        this.source = source;
+        this.deliveryMode = deliveryMode;
+        this.priority = priority;
+        this.chunkSize = source.isBinary() ? 1 : chunkSize;
+        this.blockSize = blockSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the chunk standing in for the source.
+     */
+    synchronized StreamChunk firstChunk(Destination demandDestination) {
+        StreamChunk chunk = nextChunk(demandDestination);
+        scheduleIdleTimeout();
+        return chunk;
+    }
+
+    /**
+     * Sends the next chunks to the consumer.
+     * 
+     * @param replyTo
+     *            Where the consumer receives the chunks.
+     * @param key
+     *            The consumer's key for the stream.
+     * @param chunks
+     *            How many chunks the consumer asks for, 0 to close the stream.
+     */
+    synchronized void demand(Destination replyTo, long key, int chunks) {
+        if (done) {
+            return;
+        }
+        if (idleTask != null) {
+            idleTask.cancel();
+            idleTask = null;
+        }
+        if (chunks <= 0) {
+            close();
+            return;
+        }
+        for (int i = 0; i < chunks && !done; i++) {
+            remoteSystem.sendStreamChunk(replyTo, deliveryMode, priority, nextChunk(null), key);
+        }
+        scheduleIdleTimeout();
+    }
+
+    synchronized void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        remoteSystem.streamProducers.remove(streamId);
+        if (idleTask != null) {
+            idleTask.cancel();
+            idleTask = null;
+        }
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private StreamChunk nextChunk(Destination demandDestination) {
+        ArrayList<Object> elements = new ArrayList<Object>(chunkSize);
+        Throwable exception = null;
+        boolean last = true;
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(source.classLoader);
+        try {
+            if (iterator == null) {
+                iterator = source.iterator(blockSize);
+            }
+            while (elements.size() < chunkSize && iterator.hasNext()) {
+                elements.add(iterator.next());
+            }
+            last = !iterator.hasNext();
+        } catch (Throwable e) {
+            exception = StreamSource.unwrap(e);
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+        if (last) {
+            close();
+        }
+        remoteSystem.metrics.increment(Metrics.STREAM_CHUNKS);
+        return new StreamChunk(streamId, demandDestination, source.kind, elements.toArray(), last, exception);
+    }
+
+    private void scheduleIdleTimeout() {
+        if (!done && idleTimeout > 0 && idleTimeout < Long.MAX_VALUE) {
+            idleTask = remoteSystem.getTimer().schedule(new Runnable() {
+                public void run() {
+                    close();
+                }
+            }, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Something sent a chunk at a time: the {@link Iterator} or {@link Iterable}
+ * returned by a streamed method, or an {@link InputStream} or large byte array
+ * passed as argument or result.
+ */
+final class StreamSource {
+
+    static final int ITERATOR = 0;
+    static final int ITERABLE = 1;
+    static final int INPUT_STREAM = 2;
+    static final int BYTES = 3;
+
+    final Object source;
+    final int kind;
+    final ClassLoader classLoader;
+
+    StreamSource(Object source, ClassLoader classLoader) {
+        this.source = source;
+        this.classLoader = classLoader;
+        if (source instanceof Iterator) {
+            kind = ITERATOR;
+        } else if (source instanceof InputStream) {
+            kind = INPUT_STREAM;
+        } else if (source instanceof byte[]) {
+            kind = BYTES;
+        } else {
+            kind = ITERABLE;
+        }
+    }
+
+    /**
+     * @return true if the elements are blocks of bytes.
+     */
+    boolean isBinary() {
+        return kind == INPUT_STREAM || kind == BYTES;
+    }
+
+    /**
+     * @param blockSize
+     *            The size of the blocks binary sources are split in.
+     */
+    Iterator<?> iterator(int blockSize) {
+        switch (kind) {
+        case ITERATOR:
+            return (Iterator<?>) source;
+        case ITERABLE:
+            return ((Iterable<?>) source).iterator();
+        case INPUT_STREAM:
+            return new Blocks((InputStream) source, blockSize);
+        default:
+            return new Blocks(new ByteArrayInputStream((byte[]) source), blockSize);
+        }
+    }
+
+    /**
+     * @return all the remaining elements, or all the bytes for binary sources.
+     */
+    Object drain() throws IOException {
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(classLoader);
+        try {
+            if (isBinary()) {
+                ByteArrayOutputStream rc = new ByteArrayOutputStream();
+                for (Iterator<?> i = iterator(8192); i.hasNext();) {
+                    rc.write((byte[]) i.next());
+                }
+                return rc.toByteArray();
+            }
+            ArrayList<Object> rc = new ArrayList<Object>();
+            for (Iterator<?> i = iterator(0); i.hasNext();) {
+                rc.add(i.next());
+            }
+            return rc;
+        } catch (Blocks.ReadException e) {
+            throw e.getCause();
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * @return the exception an iteration failed with, as thrown by the source.
+     */
+    static Throwable unwrap(Throwable e) {
+        return e instanceof Blocks.ReadException ? e.getCause() : e;
+    }
+
+    /**
+     * Reads an input stream a block at a time.
+     */
+    private static final class Blocks implements Iterator<byte[]>, Closeable {
+
+        static final class ReadException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            ReadException(IOException cause) {
+                super(cause);
+            }
+
+            @Override
+            public IOException getCause() {
+                return (IOException) super.getCause();
+            }
+        }
+
+        private final InputStream in;
+        private final int blockSize;
+        private byte[] next;
+        private boolean eof;
+
+        Blocks(InputStream in, int blockSize) {
+            this.in = in;
+            this.blockSize = Math.max(1, blockSize);
+        }
+
+        public boolean hasNext() {
+            if (next == null && !eof) {
+                try {
+                    byte[] block = new byte[blockSize];
+                    int size = 0;
+                    while (size < block.length) {
+                        int count = in.read(block, size, block.length - size);
+                        if (count < 0) {
+                            eof = true;
+                            break;
+                        }
+                        size += count;
+                    }
+                    if (size > 0) {
+                        if (size < block.length) {
+                            byte[] rc = new byte[size];
+                            System.arraycopy(block, 0, rc, 0, size);
+                            block = rc;
+                        }
+                        next = block;
+                    }
+                } catch (IOException e) {
+                    throw new ReadException(e);
+                }
+            }
+            return next != null;
+        }
+
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] rc = next;
+            next = null;
+            return rc;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import junit.framework.TestCase;
+
+/**
+ * @author chirino
+ */
+public class ExponentialBackoffRetryPolicyTest extends TestCase {
+
+    public void testBackoff() {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 100, 2, 0, 0, 0);
+        assertEquals(10, policy.nextDelay(1, 0));
+        assertEquals(20, policy.nextDelay(2, 0));
+        assertEquals(40, policy.nextDelay(3, 0));
+        assertEquals(80, policy.nextDelay(4, 0));
+        assertEquals(100, policy.nextDelay(5, 0));
+        assertEquals(100, policy.nextDelay(1000, 0));
+    }
+
+    public void testJitter() {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy(100, 100, 2, 0.5, 0, 0);
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.nextDelay(1, 0);
+            assertTrue(delay >= 50 && delay <= 100);
+        }
+    }
+
+    public void testLimits() {
+        RetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 100, 2, 0, 3, 0);
+        assertTrue(policy.nextDelay(2, 0) >= 0);
+        assertTrue(policy.nextDelay(3, 0) < 0);
+
+        policy = new ExponentialBackoffRetryPolicy(10, 100, 2, 0, 0, 1000);
+        assertEquals(10, policy.nextDelay(1, 985));
+        assertTrue(policy.nextDelay(1, 995) < 0);
+    }
+}
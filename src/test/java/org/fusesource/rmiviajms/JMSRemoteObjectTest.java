@@ -16,16 +16,38 @@
  */
 package org.fusesource.rmiviajms;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.rmi.MarshalException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.rmi.server.ExportException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
 
 import junit.framework.TestCase;
 
 import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.fusesource.rmiviajms.internal.JMSRemoteSystem;
 
 /**
  * @author chirino
@@ -177,6 +199,560 @@ public class JMSRemoteObjectTest extends TestCase {
         assertEquals(1, object.value.get());
     }
 
+    public static interface IAsyncHelloWorld extends Remote {
+        public Future<String> hello(String name) throws RemoteException;
+
+        public RemoteFuture<String> fail() throws RemoteException;
+
+        @Timeout(500)
+        public Future<String> slow(long millis) throws RemoteException, InterruptedException;
+    }
+
+    private static class AsyncHelloWorld implements IAsyncHelloWorld {
+        CountDownLatch slowDone = new CountDownLatch(1);
+
+        public Future<String> hello(final String name) {
+            FutureTask<String> rc = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    return "hello " + name;
+                }
+            });
+            rc.run();
+            return rc;
+        }
+
+        public RemoteFuture<String> fail() throws RemoteException {
+            throw new RemoteException("failed");
+        }
+
+        public Future<String> slow(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+            slowDone.countDown();
+            return hello("slow");
+        }
+    }
+
+    public void testAsync() throws Exception {
+        AsyncHelloWorld object = new AsyncHelloWorld();
+        IAsyncHelloWorld proxy = (IAsyncHelloWorld) JMSRemoteObject.exportObject(object);
+
+        Future<String> f1 = proxy.hello("a");
+        Future<String> f2 = proxy.hello("b");
+        assertTrue(f1 instanceof RemoteFuture);
+        assertEquals("hello a", f1.get(5, TimeUnit.SECONDS));
+        assertEquals("hello b", f2.get(5, TimeUnit.SECONDS));
+
+        final CountDownLatch notified = new CountDownLatch(1);
+        RemoteFuture<String> f3 = proxy.fail();
+        f3.addListener(new RemoteFuture.Listener<String>() {
+            public void onComplete(RemoteFuture<String> future) {
+                notified.countDown();
+            }
+        });
+        assertTrue(notified.await(5, TimeUnit.SECONDS));
+        try {
+            f3.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RemoteException);
+        }
+    }
+
+    public void testAsyncTimeout() throws Exception {
+        AsyncHelloWorld object = new AsyncHelloWorld();
+        IAsyncHelloWorld proxy = (IAsyncHelloWorld) JMSRemoteObject.exportObject(object);
+
+        // The timer completes the future, even though nobody waits on it with a timeout.
+        Future<String> f = proxy.slow(1500);
+        long start = System.currentTimeMillis();
+        try {
+            f.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RemoteException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+
+        // Let the server finish before the system gets reset.
+        assertTrue(object.slowDone.await(5, TimeUnit.SECONDS));
+        assertEquals("hello slow", proxy.slow(0).get(5, TimeUnit.SECONDS));
+    }
+
+    public void testBatch() throws Exception {
+        IHelloWorld proxy = (IHelloWorld) JMSRemoteObject.exportObject(new HelloWorld());
+        AsyncHelloWorld asyncObject = new AsyncHelloWorld();
+        IAsyncHelloWorld asyncProxy = (IAsyncHelloWorld) JMSRemoteObject.exportObject(asyncObject);
+
+        RemoteBatch<IHelloWorld> batch = JMSRemoteObject.batch(proxy);
+        for (int i = 0; i < 10; i++) {
+            assertNull(batch.getRecorder().hello());
+        }
+        batch.send();
+        assertEquals(10, batch.getResults().size());
+        for (RemoteFuture<Object> result : batch.getResults()) {
+            assertEquals("hello", result.get(5, TimeUnit.SECONDS));
+        }
+
+        RemoteBatch<IAsyncHelloWorld> asyncBatch = JMSRemoteObject.batch(asyncProxy);
+        Future<String> a = asyncBatch.getRecorder().hello("a");
+        Future<String> b = asyncBatch.getRecorder().hello("b");
+        asyncBatch.getRecorder().fail();
+        RemoteFuture<Object> failed = asyncBatch.getLastResult();
+        asyncBatch.send(true);
+        assertEquals("hello a", a.get(5, TimeUnit.SECONDS));
+        assertEquals("hello b", b.get(5, TimeUnit.SECONDS));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RemoteException);
+        }
+
+        // Every call of a batch fails when its target is gone.
+        HelloWorld gone = new HelloWorld();
+        IHelloWorld goneProxy = (IHelloWorld) JMSRemoteObject.exportObject(gone);
+        JMSRemoteObject.unexportObject(gone, true);
+        RemoteBatch<IHelloWorld> goneBatch = JMSRemoteObject.batch(goneProxy);
+        for (int i = 0; i < 3; i++) {
+            goneBatch.getRecorder().hello();
+        }
+        goneBatch.send();
+        for (RemoteFuture<Object> result : goneBatch.getResults()) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause().getCause() instanceof NoSuchObjectException);
+            }
+        }
+
+        try {
+            JMSRemoteObject.batch(asyncObject);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testSenderLanes() throws Exception {
+        JMSRemoteSystem.INSTANCE.setSenderLaneCount(4);
+        try {
+            IHelloWorld proxies[] = new IHelloWorld[8];
+            for (int i = 0; i < proxies.length; i++) {
+                proxies[i] = (IHelloWorld) JMSRemoteObject.exportObject(new HelloWorld());
+            }
+            long[] tasks = new long[4];
+            for (int i = 0; i < tasks.length; i++) {
+                tasks[i] = metric("lane.tasks." + i);
+            }
+            for (IHelloWorld proxy : proxies) {
+                assertEquals("hello", proxy.hello());
+            }
+            int used = 0;
+            for (int i = 0; i < tasks.length; i++) {
+                if (metric("lane.tasks." + i) > tasks[i]) {
+                    used++;
+                }
+            }
+            assertTrue("only " + used + " lane carried the calls", used > 1);
+        } finally {
+            JMSRemoteSystem.INSTANCE.setSenderLaneCount(JMSRemoteSystem.SENDER_LANES);
+        }
+    }
+
+    public void testDirectSend() throws Exception {
+        JMSRemoteSystem.INSTANCE.setDirectSend(true);
+        try {
+            HelloWorld object = new HelloWorld();
+            IHelloWorld proxy = (IHelloWorld) JMSRemoteObject.exportObject(object);
+            assertEquals("hello", proxy.hello());
+
+            HelloWorldCallback callback = new HelloWorldCallback();
+            proxy.world(callback);
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            assertEquals("world", callback.value);
+
+            proxy.slowOnewayOperations(1);
+            assertTrue(object.latch.await(5, TimeUnit.SECONDS));
+            assertEquals(1, object.value.get());
+        } finally {
+            JMSRemoteSystem.INSTANCE.setDirectSend(JMSRemoteSystem.DIRECT_SEND);
+        }
+    }
+
+    public static interface ITelemetry extends Remote {
+        @Oneway
+        void record(int value) throws RemoteException;
+    }
+
+    private static class Telemetry implements ITelemetry {
+        List<Integer> values = Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch latch;
+
+        Telemetry(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        public void record(int value) {
+            values.add(value);
+            latch.countDown();
+        }
+    }
+
+    public void testOnewayBatching() throws Exception {
+        JMSRemoteSystem.INSTANCE.setOnewayBatching(10, 50);
+        try {
+            Telemetry object = new Telemetry(25);
+            ITelemetry proxy = (ITelemetry) JMSRemoteObject.exportObject(object);
+            for (int i = 0; i < 25; i++) {
+                proxy.record(i);
+            }
+            // The last 5 calls get sent when the batch delay expires.
+            assertTrue(object.latch.await(5, TimeUnit.SECONDS));
+            // Executed in the order they were made through the proxy.
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < 25; i++) {
+                expected.add(i);
+            }
+            assertEquals(expected, object.values);
+
+            ActiveMQQueue systemQueue = new ActiveMQQueue("rmiviajms." + JMSRemoteSystem.INSTANCE.getSystemId());
+            assertEquals(3, broker.getDestination(systemQueue).getDestinationStatistics().getEnqueues().getCount());
+        } finally {
+            JMSRemoteSystem.INSTANCE.setOnewayBatching(JMSRemoteSystem.ONEWAY_BATCH_SIZE, JMSRemoteSystem.ONEWAY_BATCH_DELAY);
+        }
+    }
+
+    public void testResponseBatching() throws Exception {
+        JMSRemoteSystem.INSTANCE.setResponseBatching(10, 200);
+        try {
+            IAsyncHelloWorld proxy = (IAsyncHelloWorld) JMSRemoteObject.exportObject(new AsyncHelloWorld());
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 20; i++) {
+                results.add(proxy.hello("" + i));
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("hello " + i, results.get(i).get(5, TimeUnit.SECONDS));
+            }
+
+            // The client and the server share the system queue: 20 requests
+            // and far fewer than 20 response messages.
+            ActiveMQQueue systemQueue = new ActiveMQQueue("rmiviajms." + JMSRemoteSystem.INSTANCE.getSystemId());
+            assertTrue(broker.getDestination(systemQueue).getDestinationStatistics().getEnqueues().getCount() < 30);
+        } finally {
+            JMSRemoteSystem.INSTANCE.setResponseBatching(JMSRemoteSystem.RESPONSE_BATCH_SIZE, JMSRemoteSystem.RESPONSE_BATCH_DELAY);
+        }
+    }
+
+    public static interface IMixedResults extends Remote {
+        public Future<Object> result(boolean serializable) throws RemoteException;
+    }
+
+    private static class MixedResults implements IMixedResults {
+        public Future<Object> result(final boolean serializable) {
+            FutureTask<Object> rc = new FutureTask<Object>(new Callable<Object>() {
+                public Object call() {
+                    return serializable ? "ok" : new Object();
+                }
+            });
+            rc.run();
+            return rc;
+        }
+    }
+
+    public void testResponseBatchingUnmarshallable() throws Exception {
+        JMSRemoteSystem.INSTANCE.setResponseBatching(10, 200);
+        try {
+            IMixedResults proxy = (IMixedResults) JMSRemoteObject.exportObject(new MixedResults());
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 10; i++) {
+                results.add(proxy.result(i != 4));
+            }
+            // One bad result only fails its own call.
+            for (int i = 0; i < 10; i++) {
+                if (i == 4) {
+                    try {
+                        results.get(i).get(5, TimeUnit.SECONDS);
+                        fail("Expected ExecutionException");
+                    } catch (ExecutionException expected) {
+                        assertTrue(expected.getCause().getCause() instanceof MarshalException);
+                    }
+                } else {
+                    assertEquals("ok", results.get(i).get(5, TimeUnit.SECONDS));
+                }
+            }
+        } finally {
+            JMSRemoteSystem.INSTANCE.setResponseBatching(JMSRemoteSystem.RESPONSE_BATCH_SIZE, JMSRemoteSystem.RESPONSE_BATCH_DELAY);
+        }
+    }
+
+    public static interface ILookup extends Remote {
+        @Cacheable(ttl = 60000, maxEntries = 2)
+        String lookup(String key) throws RemoteException;
+    }
+
+    private static class Lookup implements ILookup {
+        AtomicInteger calls = new AtomicInteger();
+
+        public String lookup(String key) {
+            calls.incrementAndGet();
+            return key == null ? null : key.toUpperCase();
+        }
+    }
+
+    public void testCacheable() throws Exception {
+        Lookup object = new Lookup();
+        ILookup proxy = (ILookup) JMSRemoteObject.exportObject(object);
+        long hits = metric("cache.hits");
+        long misses = metric("cache.misses");
+
+        assertEquals("A", proxy.lookup("a"));
+        assertEquals("A", proxy.lookup("a"));
+        assertNull(proxy.lookup(null));
+        assertNull(proxy.lookup(null));
+        assertEquals(2, object.calls.get());
+        assertEquals(hits + 2, metric("cache.hits"));
+        assertEquals(misses + 2, metric("cache.misses"));
+
+        // Only 2 entries are kept so "a" gets evicted.
+        assertEquals("B", proxy.lookup("b"));
+        assertEquals("A", proxy.lookup("a"));
+        assertEquals(4, object.calls.get());
+
+        JMSRemoteObject.invalidateCache((Remote) proxy);
+        assertEquals("A", proxy.lookup("a"));
+        assertEquals(5, object.calls.get());
+    }
+
+    public static interface ISlowLookup extends Remote {
+        @Idempotent
+        String lookup(String key) throws RemoteException, InterruptedException;
+    }
+
+    private static class SlowLookup implements ISlowLookup {
+        AtomicInteger calls = new AtomicInteger();
+
+        public String lookup(String key) throws InterruptedException {
+            calls.incrementAndGet();
+            Thread.sleep(500);
+            return key.toUpperCase();
+        }
+    }
+
+    public void testIdempotentCoalescing() throws Exception {
+        SlowLookup object = new SlowLookup();
+        final ISlowLookup proxy = (ISlowLookup) JMSRemoteObject.exportObject(object);
+
+        ArrayList<FutureTask<String>> callers = new ArrayList<FutureTask<String>>();
+        for (int i = 0; i < 10; i++) {
+            FutureTask<String> caller = new FutureTask<String>(new Callable<String>() {
+                public String call() throws Exception {
+                    return proxy.lookup("a");
+                }
+            });
+            callers.add(caller);
+            new Thread(caller).start();
+        }
+        for (FutureTask<String> caller : callers) {
+            assertEquals("A", caller.get(5, TimeUnit.SECONDS));
+        }
+        // The threads may not all have started before the first call completed.
+        assertTrue(object.calls.get() < 10);
+
+        // Different arguments are not coalesced.
+        int calls = object.calls.get();
+        assertEquals("B", proxy.lookup("b"));
+        assertEquals(calls + 1, object.calls.get());
+    }
+
+    public static interface IAsyncSlowLookup extends Remote {
+        @Idempotent
+        Future<String> lookup(String key) throws RemoteException, InterruptedException;
+    }
+
+    private static class AsyncSlowLookup implements IAsyncSlowLookup {
+        AtomicInteger calls = new AtomicInteger();
+
+        public Future<String> lookup(final String key) throws InterruptedException {
+            calls.incrementAndGet();
+            Thread.sleep(500);
+            FutureTask<String> rc = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    return key.toUpperCase();
+                }
+            });
+            rc.run();
+            return rc;
+        }
+    }
+
+    public void testIdempotentCancelDetachesOneCaller() throws Exception {
+        AsyncSlowLookup object = new AsyncSlowLookup();
+        IAsyncSlowLookup proxy = (IAsyncSlowLookup) JMSRemoteObject.exportObject(object);
+
+        Future<String> a = proxy.lookup("a");
+        Future<String> b = proxy.lookup("a");
+        assertNotSame(a, b);
+        assertTrue(a.cancel(false));
+        assertTrue(a.isCancelled());
+        assertEquals("A", b.get(5, TimeUnit.SECONDS));
+        assertFalse(b.isCancelled());
+        assertEquals(1, object.calls.get());
+    }
+
+    public void testRequestWindow() throws Exception {
+        JMSRemoteSystem.INSTANCE.setRequestWindow(1, RequestWindowStrategy.QUEUE, 1);
+        try {
+            SlowLookup object = new SlowLookup();
+            ISlowLookup proxy = (ISlowLookup) JMSRemoteObject.exportObject(object);
+
+            FutureTask<String> a = lookupInBackground(proxy, "a");
+            waitForMetric("window.inflight", 1);
+            FutureTask<String> b = lookupInBackground(proxy, "b");
+            waitForMetric("window.queued", 1);
+            try {
+                proxy.lookup("c");
+                fail("Expected RequestWindowFullException");
+            } catch (RequestWindowFullException expected) {
+            }
+            assertEquals("A", a.get(5, TimeUnit.SECONDS));
+            assertEquals("B", b.get(5, TimeUnit.SECONDS));
+            waitForMetric("window.inflight", 0);
+            assertEquals(0, metric("window.queued"));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setRequestWindow(JMSRemoteSystem.REQUEST_WINDOW, JMSRemoteSystem.REQUEST_WINDOW_STRATEGY, JMSRemoteSystem.REQUEST_WINDOW_QUEUE);
+        }
+    }
+
+    public void testResetFailsPendingRequests() throws Exception {
+        JMSRemoteSystem.INSTANCE.setRequestWindow(1, RequestWindowStrategy.QUEUE, 1);
+        try {
+            // Nothing consumes from the queue.
+            ISlowLookup proxy = JMSRemoteObject.toProxy("NOBODY", ISlowLookup.class);
+            FutureTask<String> sent = lookupInBackground(proxy, "a");
+            waitForMetric("window.inflight", 1);
+            FutureTask<String> queued = lookupInBackground(proxy, "b");
+            waitForMetric("window.queued", 1);
+
+            JMSRemoteObject.resetSystem();
+            for (FutureTask<String> call : Arrays.asList(sent, queued)) {
+                try {
+                    call.get(5, TimeUnit.SECONDS);
+                    fail("Expected ExecutionException");
+                } catch (ExecutionException expected) {
+                    Throwable cause = expected.getCause();
+                    while (!(cause instanceof RemoteException)) {
+                        cause = cause.getCause();
+                    }
+                    assertEquals("RemoteSystem reset", cause.getMessage());
+                }
+            }
+        } finally {
+            JMSRemoteSystem.INSTANCE.setRequestWindow(JMSRemoteSystem.REQUEST_WINDOW, JMSRemoteSystem.REQUEST_WINDOW_STRATEGY, JMSRemoteSystem.REQUEST_WINDOW_QUEUE);
+        }
+    }
+
+    private static FutureTask<String> lookupInBackground(final ISlowLookup proxy, final String key) {
+        FutureTask<String> rc = new FutureTask<String>(new Callable<String>() {
+            public String call() throws Exception {
+                return proxy.lookup(key);
+            }
+        });
+        new Thread(rc).start();
+        return rc;
+    }
+
+    private static void waitForMetric(String name, long value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (metric(name) != value && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(value, metric(name));
+    }
+
+    private static long metric(String name) {
+        Long value = JMSRemoteObject.getMetrics().get(name);
+        return value == null ? 0 : value;
+    }
+
+    public static interface IGate extends Remote {
+        @Oneway
+        void pass() throws RemoteException, InterruptedException;
+    }
+
+    private static class Gate implements IGate {
+        CountDownLatch open = new CountDownLatch(1);
+        AtomicInteger passed = new AtomicInteger();
+
+        public void pass() throws InterruptedException {
+            open.await();
+            passed.incrementAndGet();
+        }
+    }
+
+    public void testOnewayFlowControl() throws Exception {
+        JMSRemoteSystem.INSTANCE.setOnewayFlowControl(4, true);
+        try {
+            Gate object = new Gate();
+            IGate proxy = (IGate) JMSRemoteObject.exportObject(object);
+            long dropped = metric("oneway.dropped");
+
+            // Nothing gets executed so only the first 4 calls get sent.
+            for (int i = 0; i < 10; i++) {
+                proxy.pass();
+            }
+            assertEquals(dropped + 6, metric("oneway.dropped"));
+
+            object.open.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (object.passed.get() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, object.passed.get());
+
+            // Once executed, the calls are credited back.
+            while (object.passed.get() < 5 && System.currentTimeMillis() < deadline) {
+                proxy.pass();
+                Thread.sleep(50);
+            }
+            assertTrue(object.passed.get() >= 5);
+        } finally {
+            JMSRemoteSystem.INSTANCE.setOnewayFlowControl(JMSRemoteSystem.ONEWAY_CREDITS, JMSRemoteSystem.ONEWAY_CREDIT_DROP);
+        }
+    }
+
+    public static interface ISink extends Remote {
+        @Oneway
+        void put(Object value) throws RemoteException;
+    }
+
+    private static class Sink implements ISink {
+        CountDownLatch received = new CountDownLatch(1);
+
+        public void put(Object value) {
+            received.countDown();
+        }
+    }
+
+    public void testOnewayCreditReturnedOnLocalFailure() throws Exception {
+        JMSRemoteSystem.INSTANCE.setOnewayFlowControl(1, false);
+        try {
+            Sink object = new Sink();
+            ISink proxy = (ISink) JMSRemoteObject.exportObject(object);
+            // Can not be marshalled, so it gives its credit back.
+            try {
+                proxy.put(new Object());
+                fail("Expected MarshalException");
+            } catch (MarshalException expected) {
+            }
+            long start = System.currentTimeMillis();
+            proxy.put("ok");
+            assertTrue(object.received.await(5, TimeUnit.SECONDS));
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        } finally {
+            JMSRemoteSystem.INSTANCE.setOnewayFlowControl(JMSRemoteSystem.ONEWAY_CREDITS, JMSRemoteSystem.ONEWAY_CREDIT_DROP);
+        }
+    }
+
     static public interface IBadOneWay extends Remote {
         @Oneway
         String badMethod() throws RemoteException;
@@ -206,6 +782,480 @@ public class JMSRemoteObjectTest extends TestCase {
         assertEquals("hello", proxy.hello());
     }
 
+    public void testCircuitBreaker() throws Exception {
+        JMSRemoteSystem.INSTANCE.setCircuitBreaker(0.5, 2, 500, 1);
+        try {
+            // Nothing consumes from the queue yet.
+            String queue = "CIRCUIT";
+            IHelloWorld proxy = JMSRemoteObject.toProxy(queue, IHelloWorld.class);
+            long opened = metric("circuit.opened");
+            for (int i = 0; i < 2; i++) {
+                JMSRemoteObject.setNextInvocationTimeout(200L);
+                try {
+                    proxy.hello();
+                    fail("Expected RemoteException");
+                } catch (RuntimeException expected) {
+                    // toProxy proxies wrap the RemoteExceptions.
+                    assertTrue(expected.getCause() instanceof RemoteException);
+                    assertFalse(expected.getCause() instanceof CircuitOpenException);
+                }
+            }
+            assertEquals(opened + 1, metric("circuit.opened"));
+            try {
+                proxy.hello();
+                fail("Expected CircuitOpenException");
+            } catch (RuntimeException expected) {
+                assertTrue(expected.getCause() instanceof CircuitOpenException);
+            }
+
+            // Once the open time is over, a successful probe closes the circuit.
+            JMSRemoteObject.exportObject(new HelloWorld(), queue);
+            Thread.sleep(600);
+            assertEquals("hello", proxy.hello());
+            assertEquals("hello", proxy.hello());
+        } finally {
+            JMSRemoteSystem.INSTANCE.setCircuitBreaker(JMSRemoteSystem.CIRCUIT_BREAKER_RATIO, JMSRemoteSystem.CIRCUIT_BREAKER_WINDOW, JMSRemoteSystem.CIRCUIT_BREAKER_OPEN_TIME,
+                    JMSRemoteSystem.CIRCUIT_BREAKER_HALF_OPEN_CALLS);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testCircuitBreakerIgnoresMarshalFailures() throws Exception {
+        JMSRemoteSystem.INSTANCE.setCircuitBreaker(0.5, 2, 5000, 1);
+        try {
+            IAppender proxy = (IAppender) JMSRemoteObject.exportObject(new Appender());
+            long opened = metric("circuit.opened");
+            List list = new ArrayList();
+            list.add(new Object());
+            for (int i = 0; i < 2; i++) {
+                try {
+                    proxy.append(list);
+                    fail("Expected MarshalException");
+                } catch (MarshalException expected) {
+                }
+            }
+            // The caller's arguments say nothing about the destination.
+            assertEquals(opened, metric("circuit.opened"));
+            assertEquals(1, proxy.append(new ArrayList<String>()));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setCircuitBreaker(JMSRemoteSystem.CIRCUIT_BREAKER_RATIO, JMSRemoteSystem.CIRCUIT_BREAKER_WINDOW, JMSRemoteSystem.CIRCUIT_BREAKER_OPEN_TIME,
+                    JMSRemoteSystem.CIRCUIT_BREAKER_HALF_OPEN_CALLS);
+        }
+    }
+
+    public static interface IAppender extends Remote {
+        int append(List<String> list) throws RemoteException;
+    }
+
+    private static class Appender implements IAppender {
+        public int append(List<String> list) {
+            list.add("x");
+            return list.size();
+        }
+    }
+
+    public void testLocalCalls() throws Exception {
+        IAppender proxy = (IAppender) JMSRemoteObject.exportObject(new Appender());
+        try {
+            long local = metric("calls.local");
+            List<String> list = new ArrayList<String>();
+
+            JMSRemoteSystem.INSTANCE.setLocalCallMode(LocalCallMode.COPY);
+            assertEquals(1, proxy.append(list));
+            assertTrue(list.isEmpty());
+
+            JMSRemoteSystem.INSTANCE.setLocalCallMode(LocalCallMode.REFERENCE);
+            assertEquals(1, proxy.append(list));
+            assertEquals(1, list.size());
+            assertEquals(local + 2, metric("calls.local"));
+
+            JMSRemoteSystem.INSTANCE.setLocalCallMode(LocalCallMode.BROKER);
+            assertEquals(2, proxy.append(list));
+            assertEquals(1, list.size());
+            assertEquals(local + 2, metric("calls.local"));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setLocalCallMode(JMSRemoteSystem.LOCAL_CALL_MODE);
+        }
+    }
+
+    public static interface IStreamer extends Remote {
+        Iterator<Integer> range(int count, int failAt) throws RemoteException;
+
+        Iterable<Integer> iterable(int count) throws RemoteException;
+    }
+
+    private static class Streamer implements IStreamer {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        public Iterator<Integer> range(final int count, final int failAt) {
+            return new Range(count, failAt);
+        }
+
+        public Iterable<Integer> iterable(int count) {
+            ArrayList<Integer> rc = new ArrayList<Integer>();
+            for (int i = 0; i < count; i++) {
+                rc.add(i);
+            }
+            return rc;
+        }
+
+        private class Range implements Iterator<Integer>, Closeable {
+            private final int count;
+            private final int failAt;
+            private int next;
+
+            Range(int count, int failAt) {
+                this.count = count;
+                this.failAt = failAt;
+            }
+
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            public Integer next() {
+                if (next == failAt) {
+                    throw new IllegalStateException("failed at " + next);
+                }
+                return next++;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            public void close() {
+                closed.countDown();
+            }
+        }
+    }
+
+    public void testStreamedResults() throws Exception {
+        JMSRemoteSystem.INSTANCE.setStreaming(10, 2, JMSRemoteSystem.STREAM_IDLE_TIMEOUT);
+        try {
+            Streamer object = new Streamer();
+            IStreamer proxy = (IStreamer) JMSRemoteObject.exportObject(object);
+            long chunks = metric("stream.chunks");
+
+            Iterator<Integer> range = proxy.range(95, -1);
+            for (int i = 0; i < 95; i++) {
+                assertTrue(range.hasNext());
+                assertEquals(i, range.next().intValue());
+            }
+            assertFalse(range.hasNext());
+            assertEquals(chunks + 10, metric("stream.chunks"));
+
+            int expected = 0;
+            for (int i : proxy.iterable(25)) {
+                assertEquals(expected++, i);
+            }
+            assertEquals(25, expected);
+
+            // Elements produced before a failure are still delivered.
+            range = proxy.range(50, 15);
+            for (int i = 0; i < 15; i++) {
+                assertEquals(i, range.next().intValue());
+            }
+            try {
+                range.hasNext();
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected2) {
+            }
+
+            // Closing an unfinished stream releases it on the server.
+            range = proxy.range(1000, -1);
+            assertEquals(0, range.next().intValue());
+            ((Closeable) range).close();
+            assertTrue(object.closed.await(5, TimeUnit.SECONDS));
+
+            // A stream the server dropped while idle fails instead of hanging.
+            JMSRemoteSystem.INSTANCE.setStreaming(10, 2, 300);
+            range = proxy.range(1000, -1);
+            assertEquals(0, range.next().intValue());
+            Thread.sleep(1000);
+            try {
+                while (range.hasNext()) {
+                    range.next();
+                }
+                fail("Expected RuntimeException");
+            } catch (RuntimeException expected3) {
+                assertTrue(expected3.getCause() instanceof NoSuchObjectException);
+            }
+        } finally {
+            JMSRemoteSystem.INSTANCE.setStreaming(JMSRemoteSystem.STREAM_CHUNK_SIZE, JMSRemoteSystem.STREAM_PREFETCH, JMSRemoteSystem.STREAM_IDLE_TIMEOUT);
+        }
+    }
+
+    public static interface IBlobStore extends Remote {
+        long checksum(InputStream in) throws RemoteException, IOException;
+
+        byte[] echo(byte[] data) throws RemoteException;
+
+        InputStream open(int size) throws RemoteException;
+    }
+
+    private static class BlobStore implements IBlobStore {
+        public long checksum(InputStream in) throws IOException {
+            return JMSRemoteObjectTest.checksum(in);
+        }
+
+        public byte[] echo(byte[] data) {
+            return data;
+        }
+
+        public InputStream open(int size) {
+            return new ByteArrayInputStream(blob(size));
+        }
+    }
+
+    private static byte[] blob(int size) {
+        byte[] rc = new byte[size];
+        for (int i = 0; i < size; i++) {
+            rc[i] = (byte) (i * 31);
+        }
+        return rc;
+    }
+
+    private static long checksum(InputStream in) throws IOException {
+        Adler32 rc = new Adler32();
+        byte[] buffer = new byte[777];
+        for (int count; (count = in.read(buffer)) >= 0;) {
+            rc.update(buffer, 0, count);
+        }
+        return rc.getValue();
+    }
+
+    public void testBinaryStreaming() throws Exception {
+        JMSRemoteSystem.INSTANCE.setBinaryStreaming(1000, 5000);
+        try {
+            IBlobStore proxy = (IBlobStore) JMSRemoteObject.exportObject(new BlobStore());
+            long expected = checksum(new ByteArrayInputStream(blob(123456)));
+            long chunks = metric("stream.chunks");
+
+            assertEquals(expected, proxy.checksum(new ByteArrayInputStream(blob(123456))));
+            assertEquals(chunks + 124, metric("stream.chunks"));
+            assertEquals(expected, checksum(proxy.open(123456)));
+            assertEquals(-1, proxy.open(0).read());
+
+            // Small arrays are sent as usual, large ones a block at a time.
+            chunks = metric("stream.chunks");
+            assertTrue(Arrays.equals(blob(5000), proxy.echo(blob(5000))));
+            assertEquals(chunks, metric("stream.chunks"));
+            assertTrue(Arrays.equals(blob(12345), proxy.echo(blob(12345))));
+            assertEquals(chunks + 26, metric("stream.chunks"));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setBinaryStreaming(JMSRemoteSystem.STREAM_BLOCK_SIZE, JMSRemoteSystem.STREAM_BYTES_THRESHOLD);
+        }
+    }
+
+    public void testCompression() throws Exception {
+        JMSRemoteSystem.INSTANCE.setCompression(1000, 1);
+        try {
+            IBlobStore proxy = (IBlobStore) JMSRemoteObject.exportObject(new BlobStore());
+            IHelloWorld hello = (IHelloWorld) JMSRemoteObject.exportObject(new HelloWorld());
+            long compressed = metric("payloads.compressed");
+
+            assertEquals("hello", hello.hello());
+            assertEquals(compressed, metric("payloads.compressed"));
+
+            // Both the request and the response get compressed.
+            assertTrue(Arrays.equals(blob(100000), proxy.echo(blob(100000))));
+            assertEquals(compressed + 2, metric("payloads.compressed"));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setCompression(JMSRemoteSystem.COMPRESSION_THRESHOLD, JMSRemoteSystem.COMPRESSION_LEVEL);
+        }
+    }
+
+    public static interface IOverloaded extends Remote {
+        String describe(int value) throws RemoteException;
+
+        String describe(String value) throws RemoteException;
+
+        String describe(int value, String unit) throws RemoteException;
+    }
+
+    private static class Overloaded implements IOverloaded {
+        public String describe(int value) {
+            return "int " + value;
+        }
+
+        public String describe(String value) {
+            return "string " + value;
+        }
+
+        public String describe(int value, String unit) {
+            return value + " " + unit;
+        }
+    }
+
+    public void testOverloadedMethods() throws Exception {
+        IOverloaded proxy = (IOverloaded) JMSRemoteObject.exportObject(new Overloaded());
+        assertEquals("int 1", proxy.describe(1));
+        assertEquals("string 1", proxy.describe("1"));
+        assertEquals("1 kg", proxy.describe(1, "kg"));
+    }
+
+    public void testBinaryEnvelope() throws Exception {
+        HelloWorld object = new HelloWorld();
+        IHelloWorld hello = (IHelloWorld) JMSRemoteObject.exportObject(object);
+        IHelloWorld explicit = (IHelloWorld) JMSRemoteObject.exportObject(new HelloWorld(), "ENVELOPE");
+        IAsyncHelloWorld async = (IAsyncHelloWorld) JMSRemoteObject.exportObject(new AsyncHelloWorld());
+        IStreamer streamer = (IStreamer) JMSRemoteObject.exportObject(new Streamer());
+        JMSRemoteSystem.INSTANCE.setBinaryEnvelope(true);
+        try {
+            assertEquals("hello", hello.hello());
+            assertEquals("hello", explicit.hello());
+            assertEquals("hello a", async.hello("a").get(5, TimeUnit.SECONDS));
+            try {
+                async.fail().get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof RemoteException);
+            }
+
+            HelloWorldCallback callback = new HelloWorldCallback();
+            hello.world(callback);
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            assertEquals("world", callback.value);
+
+            hello.slowOnewayOperations(3);
+            assertTrue(object.latch.await(5, TimeUnit.SECONDS));
+            assertEquals(3, object.value.get());
+
+            int expected = 0;
+            for (int i : streamer.iterable(25)) {
+                assertEquals(expected++, i);
+            }
+            assertEquals(25, expected);
+        } finally {
+            JMSRemoteSystem.INSTANCE.setBinaryEnvelope(JMSRemoteSystem.BINARY_ENVELOPE);
+        }
+    }
+
+    public void testSharedClassDescriptors() throws Exception {
+        IAppender appender = (IAppender) JMSRemoteObject.exportObject(new Appender());
+        JMSRemoteSystem.INSTANCE.setShareClassDescriptors(true);
+        try {
+            long shared = metric("descriptors.shared");
+            // The first exchange acknowledges the descriptors, the next ones refer to them.
+            for (int i = 0; i < 3; i++) {
+                assertEquals(2, appender.append(new ArrayList<String>(Arrays.asList("a"))));
+            }
+            assertTrue(metric("descriptors.shared") > shared);
+
+            // Calls through an explicit queue do not mix up the descriptors
+            // shared with the system queue of the same server.
+            JMSRemoteObject.exportObject(new Appender(), "APPENDER");
+            IAppender explicit = JMSRemoteObject.toProxy("APPENDER", IAppender.class);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(2, explicit.append(new LinkedList<String>(Arrays.asList("a"))));
+                assertEquals(3, appender.append(new LinkedList<String>(Arrays.asList("a", "b"))));
+                assertEquals(2, appender.append(new ArrayList<String>(Arrays.asList("a"))));
+            }
+        } finally {
+            JMSRemoteSystem.INSTANCE.setShareClassDescriptors(JMSRemoteSystem.SHARE_CLASS_DESCRIPTORS);
+        }
+    }
+
+    public void testSerializers() throws Exception {
+        IHelloWorld hello = (IHelloWorld) JMSRemoteObject.exportObject(new HelloWorld());
+        IAppender appender = (IAppender) JMSRemoteObject.exportObject(new Appender());
+        IStreamer streamer = (IStreamer) JMSRemoteObject.exportObject(new Streamer());
+        JMSRemoteSystem.INSTANCE.setSerializer("compact");
+        try {
+            assertEquals("compact", JMSRemoteSystem.INSTANCE.getSerializer());
+            assertEquals("hello", hello.hello());
+            assertEquals(3, appender.append(new ArrayList<String>(Arrays.asList("a", "b"))));
+
+            // Remote references fall back to Java serialization.
+            HelloWorldCallback callback = new HelloWorldCallback();
+            hello.world(callback);
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            assertEquals("world", callback.value);
+
+            int expected = 0;
+            for (int i : streamer.iterable(25)) {
+                assertEquals(expected++, i);
+            }
+            assertEquals(25, expected);
+
+            // Compressed payloads name their serializer too.
+            JMSRemoteSystem.INSTANCE.setCompression(100, 1);
+            assertEquals(1001, appender.append(new ArrayList<String>(Collections.nCopies(1000, "a"))));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setCompression(JMSRemoteSystem.COMPRESSION_THRESHOLD, JMSRemoteSystem.COMPRESSION_LEVEL);
+            JMSRemoteSystem.INSTANCE.setSerializer(JMSRemoteSystem.SERIALIZER);
+        }
+
+        try {
+            JMSRemoteSystem.INSTANCE.setSerializer("unknown");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public static interface IStamper extends Remote {
+        Stamp stamp() throws RemoteException;
+    }
+
+    /**
+     * Remembers the thread which deserialized it.
+     */
+    public static class Stamp implements Serializable {
+        private static final long serialVersionUID = 1L;
+        transient Thread readBy;
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            readBy = Thread.currentThread();
+        }
+    }
+
+    private static class Stamper implements IStamper {
+        public Stamp stamp() {
+            return new Stamp();
+        }
+    }
+
+    public void testResponsesDecodedByTheCaller() throws Exception {
+        IStamper stamper = (IStamper) JMSRemoteObject.exportObject(new Stamper());
+        assertSame(Thread.currentThread(), stamper.stamp().readBy);
+        JMSRemoteSystem.INSTANCE.setBinaryEnvelope(true);
+        try {
+            assertSame(Thread.currentThread(), stamper.stamp().readBy);
+        } finally {
+            JMSRemoteSystem.INSTANCE.setBinaryEnvelope(JMSRemoteSystem.BINARY_ENVELOPE);
+        }
+    }
+
+    public void testAsyncReceive() throws Exception {
+        JMSRemoteSystem.INSTANCE.setAsyncReceive(true);
+        try {
+            HelloWorld object = new HelloWorld();
+            IHelloWorld hello = (IHelloWorld) JMSRemoteObject.exportObject(object);
+            HelloWorld explicitObject = new HelloWorld();
+            IHelloWorld explicit = (IHelloWorld) JMSRemoteObject.exportObject(explicitObject, "ASYNC");
+            assertEquals("hello", hello.hello());
+            assertEquals("hello", explicit.hello());
+
+            HelloWorldCallback callback = new HelloWorldCallback("ASYNC_CALLBACK");
+            hello.world(callback);
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            assertEquals("world", callback.value);
+
+            hello.slowOnewayOperations(3);
+            assertTrue(object.latch.await(5, TimeUnit.SECONDS));
+
+            // The provider delivers the messages, nothing polls for them.
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                assertFalse(thread.getName().equals("RMI via JMS: receiver") && thread.isAlive());
+            }
+            assertTrue(JMSRemoteObject.unexportObject(explicit, true));
+        } finally {
+            JMSRemoteSystem.INSTANCE.setAsyncReceive(JMSRemoteSystem.ASYNC_RECEIVE);
+        }
+    }
+
     public static interface IHelloWorldNotRemote {
         public String hello();
 
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.broker.BrokerService;
+import org.fusesource.rmiviajms.internal.JMSRemoteSystem;
+
+/**
+ * Measures the synchronous call throughput for different numbers of sender
+ * lanes against an embedded broker like the one used by
+ * {@link JMSRemoteObjectTest}.
+ * <p>
+ * Run it with the test classpath, it is not part of the test suite.
+ */
+public class SenderLanesBenchmark {
+
+    public static interface IEcho extends Remote {
+        byte[] echo(byte[] data) throws RemoteException;
+    }
+
+    private static class Echo implements IEcho {
+        public byte[] echo(byte[] data) {
+            return data;
+        }
+    }
+
+    static final int CLIENTS = Integer.getInteger("clients", 16);
+    static final int PAYLOAD = Integer.getInteger("payload", 8 * 1024);
+    static final long DURATION = Long.getLong("duration", 5000);
+
+    public static void main(String[] args) throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setPersistent(false);
+        broker.addConnector("tcp://localhost:61616");
+        broker.setUseJmx(false);
+        broker.start();
+        try {
+            for (int lanes : new int[] { 1, 2, 4, 8 }) {
+                JMSRemoteSystem.INSTANCE.setSenderLaneCount(lanes);
+                // warm up, then measure.
+                run(1000);
+                long calls = run(DURATION);
+                System.out.println(String.format("%d lane(s): %,.0f calls/sec", lanes, calls * 1000.0 / DURATION));
+                JMSRemoteObject.resetSystem();
+            }
+        } finally {
+            broker.stop();
+        }
+    }
+
+    private static long run(long duration) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong calls = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        final byte[] payload = new byte[PAYLOAD];
+        for (int i = 0; i < CLIENTS; i++) {
+            // One exported object per client so the calls can use different lanes.
+            final IEcho proxy = (IEcho) JMSRemoteObject.exportObject(new Echo());
+            new Thread("client " + i) {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            proxy.echo(payload);
+                            calls.incrementAndGet();
+                        }
+                    } catch (RemoteException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Thread.sleep(duration);
+        running.set(false);
+        done.await();
+        return calls.get();
+    }
+}
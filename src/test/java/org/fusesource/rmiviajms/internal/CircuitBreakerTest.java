@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.fusesource.rmiviajms.CircuitOpenException;
+
+/**
+ * @author chirino
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    private final CircuitBreaker breaker = new CircuitBreaker(JMSRemoteSystem.INSTANCE, new ActiveMQQueue("CIRCUIT"), 0.5, 2, 100, 1);
+
+    private void open() throws Exception {
+        breaker.record(breaker.acquire(), true);
+        breaker.record(breaker.acquire(), true);
+        assertRejected();
+    }
+
+    private void assertRejected() {
+        try {
+            breaker.acquire();
+            fail("Expected CircuitOpenException");
+        } catch (CircuitOpenException expected) {
+        }
+    }
+
+    public void testHungProbe() throws Exception {
+        open();
+        Thread.sleep(150);
+        // The probe never completes.
+        int probe = breaker.acquire();
+        assertRejected();
+
+        // Once it ran for the open time it counts as failed.
+        Thread.sleep(150);
+        assertRejected();
+        assertRejected();
+        Thread.sleep(150);
+        breaker.record(breaker.acquire(), false);
+        breaker.record(probe, true);
+        breaker.acquire();
+    }
+
+    public void testCanceledProbe() throws Exception {
+        open();
+        Thread.sleep(150);
+        breaker.cancel(breaker.acquire());
+        breaker.record(breaker.acquire(), false);
+        breaker.acquire();
+        breaker.acquire();
+    }
+}
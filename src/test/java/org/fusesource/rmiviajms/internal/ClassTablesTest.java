@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+
+/**
+ * @author chirino
+ */
+public class ClassTablesTest extends TestCase {
+
+    static class Order implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long id;
+        final String customer;
+
+        Order(long id, String customer) {
+            this.id = id;
+            this.customer = customer;
+        }
+    }
+
+    private final ClassTables a = new ClassTables(new Metrics());
+    private final ClassTables b = new ClassTables(new Metrics());
+
+    private Request request() {
+        return new Request(1, 2, new Object[] { new Order(3, "c"), new ArrayList<String>(Arrays.asList("x")) }, 4);
+    }
+
+    private byte[] serialize(Request request) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        a.serialize(request, "b", baos);
+        return baos.toByteArray();
+    }
+
+    private byte[] send(Request request) throws Exception {
+        byte[] data = serialize(request);
+        Request copy = (Request) b.deserialize(data, getClass().getClassLoader(), "a");
+        assertEquals(request.requestId, copy.requestId);
+        assertEquals(3, ((Order) copy.args[0]).id);
+        assertEquals(Arrays.asList("x"), copy.args[1]);
+        return data;
+    }
+
+    public void testDescriptorsAreSharedOnceAcknowledged() throws Exception {
+        byte[] first = send(request());
+        // Not acknowledged yet, so the descriptors are sent in full again.
+        assertEquals(first.length, send(request()).length);
+
+        String acks = b.drainAcks("a");
+        assertNotNull(acks);
+        assertNull(b.drainAcks("a"));
+        a.ack("b", acks);
+
+        byte[] shared = send(request());
+        assertTrue(shared.length + " is not several times smaller than " + first.length, shared.length * 3 < first.length);
+    }
+
+    public void testOnlySystemQueuesArePeers() throws Exception {
+        String system = "rmiviajms.host:" + UUID.randomUUID();
+        assertEquals(system, ClassTables.peerOf(new ActiveMQQueue(system)));
+        assertNull(ClassTables.peerOf(new ActiveMQQueue("rmiviajms.ORDERS")));
+        assertNull(ClassTables.peerOf(new ActiveMQTopic(system)));
+    }
+
+    public void testResetWhenThePeerLostItsTable() throws Exception {
+        send(request());
+        a.ack("b", b.drainAcks("a"));
+
+        b.clear();
+        try {
+            b.deserialize(serialize(request()), getClass().getClassLoader(), "a");
+            fail("Expected InvalidClassException");
+        } catch (InvalidClassException expected) {
+        }
+        a.ack("b", b.drainAcks("a"));
+
+        // Starts over with the descriptors in full.
+        send(request());
+        a.ack("b", b.drainAcks("a"));
+        send(request());
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author chirino
+ */
+public class CompactSerializerTest extends TestCase {
+
+    private final CompactSerializer serializer = new CompactSerializer();
+
+    private Object roundTrip(Object value) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.serialize(value, baos);
+        return serializer.deserialize(new ByteArrayInputStream(baos.toByteArray()), getClass().getClassLoader());
+    }
+
+    public void testPrimitivesAndStrings() throws Exception {
+        Object values[] = { null, true, false, (byte) -3, (short) 300, 'x', 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 1.5f, -2.25d, "",
+                "h\u00e9llo \u4e16\u754c" };
+        for (Object value : values) {
+            assertEquals(value, roundTrip(value));
+        }
+    }
+
+    public void testArrays() throws Exception {
+        assertTrue(Arrays.equals(new byte[] { 1, -2, 3 }, (byte[]) roundTrip(new byte[] { 1, -2, 3 })));
+        assertTrue(Arrays.equals(new int[] { 0, -70000, 70000 }, (int[]) roundTrip(new int[] { 0, -70000, 70000 })));
+        assertTrue(Arrays.equals(new long[] { Long.MIN_VALUE, 42 }, (long[]) roundTrip(new long[] { Long.MIN_VALUE, 42 })));
+        assertTrue(Arrays.equals(new double[] { 0.1, Double.NaN }, (double[]) roundTrip(new double[] { 0.1, Double.NaN })));
+        assertTrue(Arrays.equals(new boolean[] { true, false }, (boolean[]) roundTrip(new boolean[] { true, false })));
+
+        String strings[] = (String[]) roundTrip(new String[] { "a", null, "c" });
+        assertTrue(Arrays.equals(new String[] { "a", null, "c" }, strings));
+        Object objects[] = (Object[]) roundTrip(new Object[] { 1, "b", new int[0] });
+        assertEquals(Object[].class, objects.getClass());
+        assertEquals("b", objects[1]);
+    }
+
+    public void testCollections() throws Exception {
+        List<Object> list = new ArrayList<Object>(Arrays.asList(1, "two", 3L));
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("list", list);
+        map.put("set", new LinkedHashSet<String>(Arrays.asList("z", "a")));
+        map.put("linked", new LinkedList<Integer>(Arrays.asList(5, 6)));
+        map.put("map", new HashMap<Integer, String>());
+
+        Object copy = roundTrip(map);
+        assertEquals(LinkedHashMap.class, copy.getClass());
+        assertEquals(map, copy);
+        assertEquals(Arrays.asList("list", "set", "linked", "map"), new ArrayList<Object>(((Map<?, ?>) copy).keySet()));
+        assertEquals(Arrays.asList("z", "a"), new ArrayList<Object>((LinkedHashSet<?>) ((Map<?, ?>) copy).get("set")));
+    }
+
+    public void testSerializableFallback() throws Exception {
+        Date date = new Date();
+        assertEquals(date, roundTrip(date));
+        assertEquals(Arrays.asList(1, 2), roundTrip(Arrays.asList(1, 2)));
+    }
+
+    public void testCycles() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add("a");
+        list.add(list);
+        List<?> copy = (List<?>) roundTrip(list);
+        assertEquals("a", copy.get(0));
+        List<?> inner = (List<?>) copy.get(1);
+        assertSame(inner, inner.get(1));
+
+        Object array[] = new Object[2];
+        array[0] = Arrays.asList(array);
+        array[1] = list;
+        Object arrayCopy[] = (Object[]) roundTrip(array);
+        assertEquals(2, arrayCopy.length);
+
+        // Shared but not cyclic values are still written compactly.
+        List<String> shared = new ArrayList<String>(Arrays.asList("x"));
+        Object pair[] = (Object[]) roundTrip(new Object[] { shared, shared });
+        assertEquals(shared, pair[0]);
+        assertEquals(shared, pair[1]);
+    }
+
+    public void testEnvelopes() throws Exception {
+        Request request = (Request) roundTrip(new Request(7, Long.MIN_VALUE + 5, new Object[] { 42 }, 1234567890123L));
+        assertEquals(7, request.objectId);
+        assertEquals(1234567890123L, request.requestId);
+        assertEquals(Long.MIN_VALUE + 5, request.methodHash);
+        assertEquals(42, request.args[0]);
+
+        ResponseBatch batch = (ResponseBatch) roundTrip(new ResponseBatch(new Response[] { new Response(1, "ok", null),
+                new Response(2, null, new IllegalStateException("failed")) }));
+        assertEquals("ok", batch.responses[0].result);
+        assertEquals(2, batch.responses[1].requestId);
+        assertEquals("failed", batch.responses[1].exception.getMessage());
+
+        StreamChunk chunk = (StreamChunk) roundTrip(new StreamChunk(3, null, StreamSource.ITERATOR, new Object[] { "a", "b" }, true, null));
+        assertEquals(3, chunk.streamId);
+        assertTrue(chunk.last);
+        assertEquals("b", chunk.elements[1]);
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.rmi.RemoteException;
+
+import junit.framework.TestCase;
+
+/**
+ * @author chirino
+ */
+public class CreditWindowTest extends TestCase {
+
+    private final Metrics metrics = new Metrics();
+
+    public void testGrants() throws Exception {
+        CreditWindow window = new CreditWindow(2, 0, metrics);
+        assertTrue(window.acquire(true, Long.MAX_VALUE));
+        assertTrue(window.acquire(true, Long.MAX_VALUE));
+        assertFalse(window.acquire(true, Long.MAX_VALUE));
+        window.grant(1);
+        assertTrue(window.acquire(true, Long.MAX_VALUE));
+    }
+
+    public void testResyncWhenGrantsAreLost() throws Exception {
+        CreditWindow window = new CreditWindow(2, 200, metrics);
+        window.acquire(false, Long.MAX_VALUE);
+        window.acquire(false, Long.MAX_VALUE);
+        assertFalse(window.acquire(true, Long.MAX_VALUE));
+
+        // No grant ever comes back: the blocked caller gets going again.
+        long start = System.currentTimeMillis();
+        assertTrue(window.acquire(false, Long.MAX_VALUE));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, metrics.counter(Metrics.CREDITS_RESYNCED).get());
+        assertTrue(window.acquire(true, Long.MAX_VALUE));
+    }
+
+    public void testCloseWakesUpWaiters() throws Exception {
+        final CreditWindow window = new CreditWindow(1, 0, metrics);
+        window.acquire(false, Long.MAX_VALUE);
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                window.close();
+            }
+        }.start();
+        try {
+            window.acquire(false, Long.MAX_VALUE);
+            fail("Expected RemoteException");
+        } catch (RemoteException expected) {
+        }
+    }
+}
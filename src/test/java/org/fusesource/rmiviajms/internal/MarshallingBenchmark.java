@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+import javax.jms.Message;
+import javax.jms.Session;
+
+import org.apache.activemq.command.ActiveMQBytesMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.command.ActiveMQObjectMessage;
+import org.fusesource.rmiviajms.Serializer;
+
+/**
+ * Prints the bytes allocated by the calling thread to encode a small request
+ * and its response, down to the content of the ActiveMQ message, with the
+ * pooled marshalling buffers and with the fresh streams and arrays allocated
+ * per message before. The message objects themselves are included in both,
+ * and measured on their own for reference.
+ * <p>
+ * Run it with the test classpath on a HotSpot JVM, it is not part of the test
+ * suite.
+ */
+public class MarshallingBenchmark {
+
+    static final int ITERATIONS = Integer.getInteger("iterations", 200000);
+
+    static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Only creates the messages, which is all the codec needs.
+     */
+    static final Session SESSION = (Session) Proxy.newProxyInstance(MarshallingBenchmark.class.getClassLoader(), new Class<?>[] { Session.class }, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("createBytesMessage")) {
+                return new ActiveMQBytesMessage();
+            }
+            if (method.getName().equals("createObjectMessage")) {
+                ActiveMQObjectMessage rc = new ActiveMQObjectMessage();
+                rc.setObject((Serializable) args[0]);
+                return rc;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    });
+
+    interface Encoder {
+        Message encode(Serializable body) throws Exception;
+    }
+
+    /**
+     * Encodes the way the codec did before the buffers were pooled.
+     */
+    static Encoder unpooled(final Serializer serializer, final int threshold) {
+        return new Encoder() {
+            public Message encode(Serializable body) throws Exception {
+                if (threshold <= 0 && serializer instanceof JavaSerializer) {
+                    return SESSION.createObjectMessage(body);
+                }
+                byte[] data = Payloads.serialize(serializer, body);
+                if (data.length > threshold) {
+                    data = Payloads.deflate(data, Deflater.BEST_SPEED);
+                }
+                ActiveMQBytesMessage msg = new ActiveMQBytesMessage();
+                msg.writeBytes(data);
+                return msg;
+            }
+        };
+    }
+
+    /**
+     * Only creates the message, to tell the cost of the provider apart.
+     */
+    static final Encoder MESSAGE_ONLY = new Encoder() {
+        public Message encode(Serializable body) throws Exception {
+            ActiveMQBytesMessage msg = new ActiveMQBytesMessage();
+            msg.writeByte((byte) 0);
+            msg.setStringProperty(JMSRemoteSystem.MSG_PROP_ENCODING, PayloadCodec.ENCODING_JAVA);
+            return msg;
+        }
+    };
+
+    static Encoder pooled(Serializer serializer, int threshold) {
+        HashMap<String, Serializer> serializers = new HashMap<String, Serializer>();
+        serializers.put(serializer.getName(), serializer);
+        final PayloadCodec codec = new PayloadCodec(serializers, serializer, threshold, Deflater.BEST_SPEED, new ClassTables(new Metrics()), false, new Metrics());
+        return new Encoder() {
+            public Message encode(Serializable body) throws Exception {
+                return codec.encode(SESSION, body, null, null);
+            }
+        };
+    }
+
+    static long allocated(Encoder encoder, Serializable request, Serializable response) throws Exception {
+        long start = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < ITERATIONS; i++) {
+            // the provider stores the content when it sends.
+            ((ActiveMQMessage) encoder.encode(request)).onSend();
+            ((ActiveMQMessage) encoder.encode(response)).onSend();
+        }
+        return (THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - start) / ITERATIONS;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Request request = new Request(1, 0x1234567890L, new Object[] { 42, "ORD-1042" }, 7);
+        Response response = new Response(7, "SHIPPED", null);
+        Serializer java = new JavaSerializer();
+        Serializer compact = new CompactSerializer();
+
+        String[] names = { "java object message", "java bytes", "java deflated", "compact", "compact deflated" };
+        Serializer[] serializers = { java, java, java, compact, compact };
+        int[] thresholds = { 0, Integer.MAX_VALUE, 1, Integer.MAX_VALUE, 1 };
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round + ", bytes allocated per call");
+            System.out.println(String.format("  %-20s %8d", "message only", allocated(MESSAGE_ONLY, request, response)));
+            for (int i = 0; i < names.length; i++) {
+                long before = allocated(unpooled(serializers[i], thresholds[i]), request, response);
+                long after = allocated(pooled(serializers[i], thresholds[i]), request, response);
+                System.out.println(String.format("  %-20s before %8d, pooled %8d", names[i], before, after));
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+/**
+ * @author chirino
+ */
+public class MarshallingBufferTest extends TestCase {
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(object);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    public void testReusedObjectStreamWritesNewStreams() throws Exception {
+        Request request = new Request(1, 2, new Object[] { 3, "four" }, 5);
+        for (int i = 0; i < 3; i++) {
+            MarshallingBuffer buffer = MarshallingBuffer.acquire();
+            try {
+                buffer.writeObject(request);
+                assertTrue(Arrays.equals(serialize(request), buffer.toByteArray()));
+                Request copy = (Request) Payloads.deserialize(buffer.toByteArray(), getClass().getClassLoader());
+                assertEquals("four", copy.args[1]);
+            } finally {
+                buffer.release();
+            }
+        }
+    }
+
+    public void testBufferInUseIsNotShared() throws Exception {
+        MarshallingBuffer buffer = MarshallingBuffer.acquire();
+        try {
+            buffer.write(1);
+            MarshallingBuffer nested = MarshallingBuffer.acquire();
+            assertNotSame(buffer, nested);
+            nested.release();
+            assertEquals(1, buffer.size());
+        } finally {
+            buffer.release();
+        }
+        MarshallingBuffer again = MarshallingBuffer.acquire();
+        assertSame(buffer, again);
+        assertEquals(0, again.size());
+        again.release();
+    }
+
+    public void testDeflate() throws Exception {
+        byte[] data = new byte[MarshallingBuffer.INITIAL_SIZE * 8];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        MarshallingBuffer buffer = MarshallingBuffer.acquire();
+        try {
+            buffer.write(data);
+            for (int i = 0; i < 2; i++) {
+                MarshallingBuffer deflated = buffer.deflate(Deflater.BEST_SPEED);
+                assertTrue(deflated.size() < data.length);
+                assertTrue(Arrays.equals(data, PayloadCodec.inflate(deflated.toByteArray())));
+            }
+        } finally {
+            buffer.release();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.lang.reflect.Method;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import org.fusesource.rmiviajms.Priority;
+import org.fusesource.rmiviajms.Timeout;
+
+/**
+ * Compares the per call cost of working out the invocation details of a
+ * method from its annotations (what the invocation path used to do on every
+ * call) with looking up the cached {@link MethodInfo}.
+ * <p>
+ * Run it with the test classpath, it is not part of the test suite.
+ */
+public class MethodInfoBenchmark {
+
+    public static interface IService extends Remote {
+        @Timeout(1000)
+        @Priority(7)
+        String lookup(String key, int version, long[] ids) throws RemoteException;
+    }
+
+    static final int ITERATIONS = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        Method method = IService.class.getMethod("lookup", String.class, int.class, long[].class);
+        JMSRemoteRef ref = new JMSRemoteRef();
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long blackhole = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                blackhole += new MethodInfo(method).signature.length();
+            }
+            long reflective = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                blackhole += ref.getMethodInfo(method).signature.length();
+            }
+            long cached = System.nanoTime() - start;
+
+            System.out.println(String.format("round %d: per call reflection %.1f ns/op, cached %.1f ns/op (%d)", round, (double) reflective / ITERATIONS, (double) cached / ITERATIONS, blackhole));
+        }
+    }
+}
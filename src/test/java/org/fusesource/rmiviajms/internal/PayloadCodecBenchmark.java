@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+
+import org.fusesource.rmiviajms.Serializer;
+
+/**
+ * Shows for which payload sizes compressing the requests and responses pays
+ * off: prints the serialized and deflated sizes of typical object graphs, and
+ * the time spent encoding and decoding them with and without compression.
+ * Compression wins once the time it costs is below the time saved moving the
+ * smaller message through the broker, which depends on the network. The
+ * compact serializer is measured on the same orders, and on the orders as
+ * maps, which it encodes without falling back to Java serialization.
+ * <p>
+ * Run it with the test classpath, it is not part of the test suite.
+ */
+public class PayloadCodecBenchmark {
+
+    static class Order implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final long id;
+        final String customer;
+        final String status;
+        final double amount;
+
+        Order(long id) {
+            this.id = id;
+            this.customer = "customer-" + (id % 97);
+            this.status = id % 3 == 0 ? "SHIPPED" : "PENDING";
+            this.amount = id * 1.5;
+        }
+
+        HashMap<String, Object> toMap() {
+            HashMap<String, Object> rc = new HashMap<String, Object>();
+            rc.put("id", id);
+            rc.put("customer", customer);
+            rc.put("status", status);
+            rc.put("amount", amount);
+            return rc;
+        }
+    }
+
+    static long time(Serializer serializer, Object value, int iterations, int[] size) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            byte[] data = Payloads.serialize(serializer, value);
+            serializer.deserialize(new ByteArrayInputStream(data), null);
+            size[0] = data.length;
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    static final int[] ORDERS = { 1, 10, 50, 100, 1000, 10000 };
+
+    public static void main(String[] args) throws Exception {
+        Serializer compactSerializer = new CompactSerializer();
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            for (int count : ORDERS) {
+                ArrayList<Order> orders = new ArrayList<Order>(count);
+                ArrayList<HashMap<String, Object>> maps = new ArrayList<HashMap<String, Object>>(count);
+                for (int i = 0; i < count; i++) {
+                    orders.add(new Order(i));
+                    maps.add(orders.get(i).toMap());
+                }
+                Response response = new Response(1, orders, null);
+                int iterations = Math.max(10, 200000 / count);
+
+                long start = System.nanoTime();
+                byte[] plain = null;
+                for (int i = 0; i < iterations; i++) {
+                    plain = Payloads.serialize(response);
+                    Payloads.deserialize(plain, null);
+                }
+                long plainTime = (System.nanoTime() - start) / iterations;
+
+                start = System.nanoTime();
+                byte[] deflated = null;
+                for (int i = 0; i < iterations; i++) {
+                    deflated = Payloads.deflate(Payloads.serialize(response), Deflater.BEST_SPEED);
+                    Payloads.deserialize(PayloadCodec.inflate(deflated), null);
+                }
+                long deflatedTime = (System.nanoTime() - start) / iterations;
+
+                int[] compact = new int[1];
+                long compactTime = time(compactSerializer, response, iterations, compact);
+                int[] compactMaps = new int[1];
+                long compactMapsTime = time(compactSerializer, new Response(1, maps, null), iterations, compactMaps);
+
+                System.out.println(String.format("  %5d orders: %8d bytes %8.1f us, deflated %8d bytes (%3d%%) %8.1f us, compact %8d bytes %8.1f us, compact maps %8d bytes %8.1f us",
+                        count, plain.length, plainTime / 1000.0, deflated.length, 100 * deflated.length / plain.length, deflatedTime / 1000.0, compact[0], compactTime / 1000.0,
+                        compactMaps[0], compactMapsTime / 1000.0));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.fusesource.rmiviajms.Serializer;
+
+/**
+ * Payload encoding shortcuts for the tests and benchmarks, working on plain
+ * byte arrays rather than the pooled buffers of the {@link PayloadCodec}.
+ * 
+ * @author chirino
+ */
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    static byte[] serialize(Serializer serializer, Object object) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        serializer.serialize(object, baos);
+        return baos.toByteArray();
+    }
+
+    static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(baos);
+        out.writeObject(object);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    static Object deserialize(byte[] data, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        return new ClassLoadingObjectInputStream(new ByteArrayInputStream(data), classLoader).readObject();
+    }
+
+    static byte[] deflate(byte[] data, int level) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length / 2);
+            DeflaterOutputStream out = new DeflaterOutputStream(baos, deflater);
+            out.write(data);
+            out.close();
+            return baos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
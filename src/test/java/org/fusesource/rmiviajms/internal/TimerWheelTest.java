@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2009 Progress Software, Inc.
+ * http://fusesource.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fusesource.rmiviajms.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author chirino
+ */
+public class TimerWheelTest extends TestCase {
+
+    private TimerWheel timer;
+
+    @Override
+    protected void setUp() throws Exception {
+        // A small wheel so that the deadlines below need several rounds.
+        timer = new TimerWheel("test timer", 5, 8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        timer.stop();
+    }
+
+    public void testExpires() throws Exception {
+        final CountDownLatch expired = new CountDownLatch(3);
+        long start = System.nanoTime();
+        timer.schedule(countDown(expired), 0, TimeUnit.MILLISECONDS);
+        timer.schedule(countDown(expired), 20, TimeUnit.MILLISECONDS);
+        TimerWheel.Timeout last = timer.schedule(countDown(expired), 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        assertTrue(last.isExpired());
+        assertFalse(last.cancel());
+    }
+
+    public void testCancel() throws Exception {
+        final AtomicInteger counter = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                counter.incrementAndGet();
+            }
+        };
+        TimerWheel.Timeout canceled = timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+        assertTrue(canceled.cancel());
+        assertFalse(canceled.cancel());
+
+        CountDownLatch done = new CountDownLatch(1);
+        timer.schedule(countDown(done), 100, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, counter.get());
+        assertFalse(canceled.isExpired());
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}